@@ -13,6 +13,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.pfarrell.utils.database.AbstractPersistentObject;
 import com.pfarrell.utils.database.DBConnectionPool;
+import com.pfarrell.utils.database.DBUtil;
 import com.pfarrell.utils.misc.TimeUtils;
 import java.io.Serializable;
 import java.sql.Connection;
@@ -55,6 +56,15 @@ public abstract class AbstractPersistentBusinessObject<T extends AbstractPersist
         setId(id);
         load();
     }
+    /**
+     * gets the column name of the date of change, which {@link com.pfarrell.cache.DatabaseCache}
+     * uses to select only the rows changed since its last refresh. Override in classes
+     * whose save command writes the date of change.
+     * @return column name, or <code>null</code> if there is none, which is the default
+     */
+public String getDateOfChangeFieldName() {
+    return null;
+}
     /** helper function, Google Guava function */
 private static  Function<AbstractPersistentBusinessObject, Long> PboIdConvertor = new Function<AbstractPersistentBusinessObject, Long>() {
                 @Override
@@ -100,17 +110,28 @@ public static <T extends AbstractPersistentBusinessObject> List<T> findAll( Clas
 }
 
 /**
- * creates and returns a {@link PboIterable} for all records in the calling argument's table
+ * creates and returns a {@link PboIterable} for all records in the calling argument's table,
+ * streamed with the default fetch size, see {@link PboIterable#setDefaultFetchSize}
  * @param <T> the generic type desired
  * @param caller the class of the type
- * @return a PboItarable into the result set
+ * @return a PboItarable into the result set, close it if it is not read to the end
+ * @see PboScan for reading a whole table on many connections at once
  */
 public static <T extends AbstractPersistentBusinessObject> PboIterable<T>
                                             findIterableForAll( Class<T> caller)  {
+    return findIterableForAll(caller, PboIterable.getDefaultFetchSize());
+}
+/**
+ * creates and returns a streamed {@link PboIterable} for all records in the calling argument's table
+ * @param <T> the generic type desired
+ * @param caller the class of the type
+ * @param fetchSize rows per fetch, {@link PboIterable#STREAM_ROWS} to stream row by row on MySQL
+ * @return a PboItarable into the result set, close it if it is not read to the end, null if the query failed
+ */
+public static <T extends AbstractPersistentBusinessObject> PboIterable<T>
+                                            findIterableForAll( Class<T> caller, int fetchSize)  {
         Preconditions.checkNotNull(caller);
         String query = null;
-        Connection myCon = null;
-        Statement  s = null;
         PboIterable<T> rval = null;
         T anObj = null;
         try {
@@ -118,11 +139,7 @@ public static <T extends AbstractPersistentBusinessObject> PboIterable<T>
             assert anObj != null;
             
             query = anObj.getStringForSelect();
-            myCon = DBConnectionPool.getConnection();
-            s = myCon.createStatement();
-            if ( pboLogger.isInfoEnabled()) pboLogger.info(query);
-            ResultSet rs = s.executeQuery(query);
-            rval = new PboIterable<T>(myCon, rs, caller);
+            rval = streamFromQueryString(query, caller, fetchSize);
         } catch (SQLException ex) {
             String msg = String.format("APBO:findIterableForAll for %s caught Sql doing %s", 
                             caller.getName(), query);
@@ -153,46 +170,102 @@ public static <T extends AbstractPersistentBusinessObject> PboIterable<T>
     Statement  s = null;
     PboIterable<T> rval = null;
     try {
-        myCon = DBConnectionPool.getConnection();
+        myCon = DBConnectionPool.getReadConnection();
         s = myCon.createStatement();
         if ( pboLogger.isInfoEnabled()) pboLogger.info(query);
         ResultSet rs = s.executeQuery(query);
-        rval =  new PboIterable<T>( myCon, rs, caller);
+        rval =  new PboIterable<T>( myCon, s, rs, caller);
     }  catch (SQLException sqe) {
         String msg = String.format("APBO: iterable FromQueryString for %s caught Sql doing %s", 
                         caller.getName(), query);
         pboLogger.error(msg, sqe);
+        abandon(myCon, s, sqe);
         throw sqe;
     } catch (RuntimeException e) {
         if (pboLogger != null && e != null) pboLogger.error("factory error", e);
+        abandon(myCon, s, e);
         throw e;
     }
     return rval;
 }
+    /**
+     * creates a {@link PboIterable} that streams the rows of the query string, with a forward
+     * only, read only cursor, rather than holding them all in memory
+     * @param <T> generic type of PBO
+     * @param query SQL select statement, must not be null
+     * @param caller class/type of data to be returned, must not be null
+     * @param fetchSize rows per fetch, {@link PboIterable#STREAM_ROWS} to stream row by row on MySQL,
+     * zero for the driver's default
+     * @return the iterable, it returns its connection at the end of the rows, or on close()
+     * @throws SQLException  pass up any Sql complaints
+     */
 public static <T extends AbstractPersistentBusinessObject> PboIterable<T>
-        iterableFromQueryString(String query, Class<T> caller, String... args) throws SQLException {
+        streamFromQueryString(String query, Class<T> caller, int fetchSize) throws SQLException {
     Preconditions.checkNotNull(query);
     Preconditions.checkNotNull(caller);
+    Preconditions.checkArgument(fetchSize >= 0 || fetchSize == PboIterable.STREAM_ROWS,
+                    "fetch size must be positive, zero or STREAM_ROWS");
     Connection myCon = null;
+    Statement  s = null;
     PboIterable<T> rval = null;
-    PreparedStatement ps = null;
     try {
-        myCon = DBConnectionPool.getConnection();
+        myCon = DBConnectionPool.getReadConnection();
+        s = myCon.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        s.setFetchSize(fetchSize);
         if ( pboLogger.isInfoEnabled()) pboLogger.info(query);
-        ps = myCon.prepareStatement(query);
-        for (int i = 0; i < args.length; i++) {
-            ps.setString(i+1, args[i]);
+        ResultSet rs = s.executeQuery(query);
+        rval =  new PboIterable<T>( myCon, s, rs, caller);
+    }  catch (SQLException sqe) {
+        String msg = String.format("APBO: streamFromQueryString for %s caught Sql doing %s", 
+                        caller.getName(), query);
+        pboLogger.error(msg, sqe);
+        abandon(myCon, s, sqe);
+        throw sqe;
+    } catch (RuntimeException e) {
+        if (pboLogger != null && e != null) pboLogger.error("factory error", e);
+        abandon(myCon, s, e);
+        throw e;
+    }
+    return rval;
+}
+/**
+ * cleans up after an iterable that could not be made
+ * @param con its connection, may be null
+ * @param s its statement, may be null
+ * @param problem what went wrong
+ */
+private static void abandon(Connection con, Statement s, Exception problem) {
+    if (s != null) {
+        try {
+            s.close();
+        } catch (SQLException ex) {
+            pboLogger.debug("closing abandoned statement", ex);
         }
+    }
+    if (con != null) DBConnectionPool.returnCon(con, problem);
+}
+public static <T extends AbstractPersistentBusinessObject> PboIterable<T>
+        iterableFromQueryString(String query, Class<T> caller, String... args) throws SQLException {
+    Preconditions.checkNotNull(query);
+    Preconditions.checkNotNull(caller);
+    Connection myCon = null;
+    PboIterable<T> rval = null;
+    try {
+        myCon = DBConnectionPool.getReadConnection();
+        PreparedStatement ps = DBConnectionPool.prepare(myCon, query);
+        DBUtil.bind(ps, (Object[]) args);
         if ( pboLogger.isInfoEnabled()) pboLogger.info(query);
-        ResultSet rs = ps.executeQuery(query);
+        ResultSet rs = ps.executeQuery();
         rval =  new PboIterable<T>( myCon, rs, caller);
     }  catch (SQLException sqe) {
         String msg = String.format("APBO: iterable FromQueryStringVarArg for %s caught Sql doing %s", 
                         caller.getName(), query);
         pboLogger.error(msg, sqe);
+        abandon(myCon, null, sqe);
         throw sqe;
     } catch (RuntimeException e) {
         if (pboLogger != null && e != null) pboLogger.error("factory error", e);
+        abandon(myCon, null, e);
         throw e;
     }
     return rval;
@@ -207,34 +280,74 @@ public static <T extends AbstractPersistentBusinessObject> PboIterable<T>
  */
 public static <T extends AbstractPersistentBusinessObject> List<T>
         factoryFromQueryString(String query, Class<T> caller) throws SQLException {
+    return factoryFromQueryString(query, caller, true);
+}
+/**
+ * gets a list of populated records for the query string argument, optionally without
+ * storing {@link Cacheable} records in their cache. A cache refreshing itself must not have
+ * the rows it reads put back in behind its back.
+ * The query runs on a read replica if there are any, see {@link DBConnectionPool#getReadConnection()}.
+ * @param <T> type of the returned objects
+ * @param query a SQL query ready to fire
+ * @param caller the class of the PBO to return
+ * @param storeInCache true to call {@link Cacheable#storeThisInCache()} on each record
+ * @return the List resulting from executing the query
+ * @throws SQLException pass up any Sql complaints
+ */
+public static <T extends AbstractPersistentBusinessObject> List<T>
+        factoryFromQueryString(String query, Class<T> caller, boolean storeInCache) throws SQLException {
+    return factoryFromQueryString(query, caller, storeInCache, false);
+}
+/**
+ * gets a list of populated records for the query string argument, always reading the primary
+ * database, never a replica that may lag. For loads that must see the latest write, such as a
+ * cache filling a key another node has just invalidated.
+ * @param <T> type of the returned objects
+ * @param query a SQL query ready to fire
+ * @param caller the class of the PBO to return
+ * @return the List resulting from executing the query
+ * @throws SQLException pass up any Sql complaints
+ */
+public static <T extends AbstractPersistentBusinessObject> List<T>
+        factoryFromPrimary(String query, Class<T> caller) throws SQLException {
+    return factoryFromQueryString(query, caller, true, true);
+}
+private static <T extends AbstractPersistentBusinessObject> List<T>
+        factoryFromQueryString(String query, Class<T> caller, boolean storeInCache, boolean primary)
+                    throws SQLException {
     Preconditions.checkNotNull(query);
     Preconditions.checkNotNull(caller);
     ArrayList<T> rval = null;
     Connection myCon = null;
     Statement  s = null;
+    SQLException problem = null;
     try {
-        myCon = DBConnectionPool.getConnection();
+        myCon = primary ? DBConnectionPool.getConnection() : DBConnectionPool.getReadConnection();
         s = myCon.createStatement();
         if ( pboLogger.isInfoEnabled()) pboLogger.info(query);
         ResultSet rs = s.executeQuery(query);
-        rval = returnResultList(rs, caller);
+        rval = returnResultList(rs, caller, storeInCache);
     }  catch (SQLException sqe) {
         String msg = String.format("APBO: factoryFromQueryString for %s caught Sql doing %s", 
                         caller.getName(), query);
         pboLogger.error(msg, sqe);
+        problem = sqe;
         throw sqe;
     } catch (RuntimeException e) {
         if (pboLogger != null && e != null) pboLogger.error("factory error", e);
         throw e;
     } finally {
-        if ( s != null) s.close();
+        try {
+            if ( s != null) s.close();
+        } finally {
+            if (myCon != null) DBConnectionPool.returnCon(myCon, problem);
+        }
     }
-    DBConnectionPool.returnCon(myCon, null);
     return rval;
 }
     /**
      * creates and loads list of  objects from database retrieved according to the query string (with PreparedStatement
-     * style binding).
+     * style binding). The statement is kept in the cache of the connection, see {@link DBConnectionPool#prepare}.
      * @param <T> generic type of PBO
      * @param query SQL select statement, must not be null
      * @param caller class/type of data to be returned, must not be null
@@ -250,28 +363,31 @@ public static <T extends AbstractPersistentBusinessObject> ArrayList<T>
     Preconditions.checkNotNull(args);
     ArrayList<T> rval = null;
     Connection myCon = null;
-    PreparedStatement ps = null;
+    ResultSet rs = null;
+    SQLException problem = null;
     try {
-        myCon = DBConnectionPool.getConnection();
+        myCon = DBConnectionPool.getReadConnection();
         if ( pboLogger.isInfoEnabled()) pboLogger.info(query);
-        ps = myCon.prepareStatement(query);
-        for (int i = 0; i < args.length; i++) {
-            ps.setString(i+1, args[i]);
-        }
-        ResultSet rs = ps.executeQuery();
-        rval = returnResultList(rs, caller);
+        PreparedStatement ps = DBConnectionPool.prepare(myCon, query);
+        DBUtil.bind(ps, (Object[]) args);
+        rs = ps.executeQuery();
+        rval = returnResultList(rs, caller, true);
     }  catch (SQLException sqe) {
         String msg = String.format("APBO:factoryFromQueryString with args for %s caught Sql doing %s", 
                         caller.getName(), query);
         pboLogger.error(msg, sqe);
+        problem = sqe;
         throw sqe;
     } catch (RuntimeException e) {
         if (pboLogger != null && e != null) pboLogger.error("factory error", e);
         throw e;
     } finally {
-        if ( ps != null) ps.close();
+        try {
+            if ( rs != null) rs.close();
+        } finally {
+            if (myCon != null) DBConnectionPool.returnCon(myCon, problem);
+        }
     }
-    DBConnectionPool.returnCon(myCon, null);
     return rval;
 }
    /**
@@ -279,10 +395,12 @@ public static <T extends AbstractPersistentBusinessObject> ArrayList<T>
     * @param <T> the type of the 'caller' parameter
     * @param rs SQL result set
     * @param caller the class of the caller, used to create new instance
+    * @param storeInCache true to store Cacheable objects in their cache
     * @return array list of <T> loaded with data
     * @throws SQLException  pass up any Sql complaints
     */
-private static <T extends AbstractPersistentBusinessObject> ArrayList<T> returnResultList(ResultSet rs, Class<T> caller) throws SQLException {
+static <T extends AbstractPersistentBusinessObject> ArrayList<T> returnResultList(ResultSet rs, Class<T> caller,
+                    boolean storeInCache) throws SQLException {
     Preconditions.checkNotNull(rs);
     Preconditions.checkNotNull(caller);
     ArrayList<T> rval = new ArrayList<T>();
@@ -303,7 +421,7 @@ private static <T extends AbstractPersistentBusinessObject> ArrayList<T> returnR
             anObj.populateOneRecord(rs);
             anObj.setFromDatabase();
 
-            if (anObj instanceof Cacheable) {
+            if (storeInCache && anObj instanceof Cacheable) {
                 Cacheable asCacheable = (Cacheable) anObj;
                 asCacheable.storeThisInCache();
             }
@@ -41,12 +41,16 @@ public void put(K key, V value);
  */
 public void invalidate(K key);
 /**
- * Returns the value to which the specified key is mapped in this cache.
+ * Returns the value to which the specified key is mapped in this cache, loading it
+ * from the database on a miss. Implementations should delegate to
+ * {@link com.pfarrell.cache.DatabaseCache#getOrLoad}, so that concurrent misses on the
+ * same key issue one select rather than one each.
  *
  * @param   key   a key in the cache.
  * @return  the value to which the key is mapped in this cache;
  *          <code>null</code> if the key is not mapped to any value in
- *          this cache.
+ *          this cache or the database.
+ * @throws ExecutionException wraps any problem loading the value
  * @see     java.util.Hashtable#put(java.lang.Object, java.lang.Object)
  */
 public V get(K key) throws ExecutionException;
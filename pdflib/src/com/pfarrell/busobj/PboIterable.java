@@ -8,6 +8,7 @@ import com.pfarrell.utils.database.DBConnectionPool;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import org.apache.log4j.Logger;
@@ -15,6 +16,23 @@ import org.apache.log4j.Logger;
 /**
  * The <code>PboIterable</code> class implements the minimum needed to return an object that 
  * implements Iterable for a SQL results set.
+ * <p>
+ * It holds a pooled connection until it is closed. That happens by itself when the iteration
+ * runs off the end or fails, otherwise call {@link #close()}, best with try-with-resources:
+ * <pre>
+ *   try (PboIterable&lt;User&gt; users = AbstractPersistentBusinessObject.findIterableForAll(User.class)) {
+ *       for (User u : users) { ... }
+ *   }
+ * </pre>
+ * The one made by {@link AbstractPersistentBusinessObject#streamFromQueryString} uses a forward
+ * only, read only cursor with a fetch size, so the rows are not all held in memory at once.
+ * With MySQL, a fetch size of {@link #STREAM_ROWS} streams the rows one at a time, and nothing
+ * else may run on the connection meanwhile, which is fine as no one else has it. A positive fetch
+ * size needs <code>useCursorFetch=true</code> on the JDBC url.
+ * <p>
+ * Closed before the end, it cancels its own statement first, so the driver does not read the
+ * rest of a streamed result just to throw it away. A result set passed in without its
+ * statement is not cancelled, closing it reads it to the end.
  * @param <T> type, must extend AbstractPersistentBusinessObject
  * @see Iterable
  * @see Iterator
@@ -24,13 +42,21 @@ import org.apache.log4j.Logger;
  * @author pfarrell
  * Created on Aug 1, 2011, 12:58:17 PM
  */
-public class PboIterable<T extends AbstractPersistentBusinessObject> implements Iterable<T> {
+public class PboIterable<T extends AbstractPersistentBusinessObject> implements Iterable<T>, AutoCloseable {
     /** logger instance */
     private static final Logger piLog = Logger.getLogger(PboIterable.class);
+    /** fetch size that makes MySQL Connector/J stream the rows one at a time */
+    public static final int STREAM_ROWS = Integer.MIN_VALUE;
+    /** fetch size of {@link AbstractPersistentBusinessObject#findIterableForAll(Class)} */
+    private static volatile int defaultFetchSize = STREAM_ROWS;
     private ResultSet saveRs;
     private Class<T> saveClass;
     private Connection saveCon;
+    /** statement this made the result set on, closed with it, null if it is not ours */
+    private Statement saveStmt;
     private boolean hasNext;
+    /** the last row has been read */
+    private boolean atEnd;
     /**  
      * constructor
      * @param aCon Connection to use, keep so we call close().
@@ -45,20 +71,82 @@ public PboIterable(Connection aCon, ResultSet rs, Class<T> caller) {
     saveRs = rs;
     saveClass = caller;
 }
+/**
+ * constructor, for a result set of a statement made just for it, closed with it
+ * @param aCon Connection to use, keep so we call close().
+ * @param stmt the statement of the result set, not a cached one
+ * @param rs Sql result set
+ * @param caller class of caller PBO
+ */
+public PboIterable(Connection aCon, Statement stmt, ResultSet rs, Class<T> caller) {
+    this(aCon, rs, caller);
+    Preconditions.checkNotNull(stmt);
+    saveStmt = stmt;
+}
+/**
+ * sets the fetch size findIterableForAll uses
+ * @param arg rows per fetch, {@link #STREAM_ROWS} to stream, zero for the driver's default
+ */
+public static void setDefaultFetchSize(int arg) {
+    Preconditions.checkArgument(arg >= 0 || arg == STREAM_ROWS, "fetch size must be positive, zero or STREAM_ROWS");
+    defaultFetchSize = arg;
+}
+/**
+ * @return the fetch size findIterableForAll uses
+ */
+public static int getDefaultFetchSize() {
+    return defaultFetchSize;
+}
 /**
  * returns the connection
  * @throws SQLException passes up any Sql 
  */
 public void returnCon() throws SQLException {
-    saveRs.close();
-    saveRs = null;
-    saveClass = null;
+    close();
+}
+/**
+ * closes the result set and returns the connection, more calls do nothing
+ */
+public void close() {
+    close(null);
+}
+/**
+ * closes the result set and returns the connection, as broken if there was a problem
+ * @param problem the exception that ended the iteration, or null
+ */
+private synchronized void close(Exception problem) {
+    if (saveCon == null) return;
+    Exception failure = problem;
     hasNext = false;
-    if ( ! saveCon.getAutoCommit() ) {
-        saveCon.commit();
+    try {
+        if (failure == null && ! atEnd && saveStmt != null) {
+            try {
+                saveStmt.cancel();
+            } catch (SQLException ex) {
+                piLog.debug("cancelling PboIterable statement", ex);
+            }
+        }
+        saveRs.close();
+        if (saveStmt != null) saveStmt.close();
+        if (failure == null && ! saveCon.getAutoCommit() ) {
+            saveCon.commit();
+        }
+    } catch (SQLException ex) {
+        piLog.error("closing PboIterable", ex);
+        if (failure == null) failure = ex;
+    } finally {
+        DBConnectionPool.returnCon(saveCon, failure);
+        saveRs = null;
+        saveStmt = null;
+        saveClass = null;
+        saveCon = null;
     }
-    DBConnectionPool.returnCon(saveCon);
-    saveCon = null;
+}
+/**
+ * @return true once the connection has been returned
+ */
+public synchronized boolean isClosed() {
+    return saveCon == null;
 }
 /**
  * gets the iterator
@@ -82,11 +170,21 @@ public Iterator<T> iterator() {
             else if (status == NextStatus.no) {
                 rval = false;
             } else if (status == NextStatus.untested) {
+                if (saveRs == null) {
+                    status = NextStatus.no;     // closed
+                    return false;
+                }
                 try {
                     rval = saveRs.next();       // side effect, moves cursor to next
                     status = rval ? NextStatus.yes : NextStatus.no;
+                    if (!rval) {
+                        atEnd = true;
+                        close();
+                    }
                 } catch (SQLException ex) {
                     piLog.fatal("hasNext failed, bad", ex);                    
+                    status = NextStatus.no;
+                    close(ex);
                 }
                 
             } else {
@@ -106,7 +204,7 @@ public Iterator<T> iterator() {
             } if (status == NextStatus.yes) {
                 // cool, go on
             } else if (status == NextStatus.untested) {
-                hasNext();
+                if (!hasNext()) throw new NoSuchElementException();
             } else {
                 throw new IllegalStateException("impossible NextStatus state2");
             }
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+package com.pfarrell.busobj;
+
+import com.google.common.base.Preconditions;
+import com.pfarrell.exceptions.PibException;
+import com.pfarrell.utils.database.DBConnectionPool;
+import com.pfarrell.utils.database.DBUtil;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.apache.log4j.Logger;
+
+/**
+ * The <code>PboScan</code> class reads every row of a business object table, in parallel.
+ * The primary key values, from the lowest to the highest
+ * {@link AbstractPersistentBusinessObject#getIdFieldName()}, are split into ranges, and each
+ * range is read by its own select, <code>where id &gt;= ? and id &lt;= ? order by id</code>,
+ * on its own pooled connection. Every select walks the primary key index, there is no offset
+ * to skip over, so the last range costs no more than the first.
+ * <pre>
+ *   long stale = PboScan.parallelStream(User.class).filter(isStale).count();
+ * </pre>
+ * The stream splits the key ranges over the threads of its fork/join pool, the common one
+ * unless it is run inside another, so that many ranges are read at once. A connection is only
+ * held while one range is selected into memory, at most {@link #DEFAULT_RANGE_SIZE} keys, or
+ * the range size asked for. Ranges are read from the replicas if there are any, see
+ * {@link DBConnectionPool#getReadConnection()}. The rows are not put in their caches.
+ * <p>
+ * The ranges are of key values, so keys with gaps give fewer rows per select, not more selects
+ * than the key span needs. Each row is as it was when its range was read, the scan is not one
+ * snapshot of the table.
+ *
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+public final class PboScan {
+    /** logger instance */
+private static final Logger psLog = Logger.getLogger(PboScan.class);
+/** default number of key values read by one select */
+public static final long DEFAULT_RANGE_SIZE = 10000L;
+
+private PboScan() {
+}
+/**
+ * makes a parallel stream of every row of the table, read in ranges of the default size
+ * @param <T> type of the business object
+ * @param caller class of the business object
+ * @return the stream
+ * @throws SQLException if the key range could not be read
+ */
+public static <T extends AbstractPersistentBusinessObject<T>> Stream<T> parallelStream(Class<T> caller)
+                throws SQLException {
+    return parallelStream(caller, DEFAULT_RANGE_SIZE);
+}
+/**
+ * makes a parallel stream of every row of the table. A failed select ends the stream with a
+ * {@link PibException} wrapping the SQLException.
+ * @param <T> type of the business object
+ * @param caller class of the business object
+ * @param rangeSize number of key values read by one select
+ * @return the stream
+ * @throws SQLException if the key range could not be read
+ */
+public static <T extends AbstractPersistentBusinessObject<T>> Stream<T> parallelStream(Class<T> caller, long rangeSize)
+                throws SQLException {
+    return StreamSupport.stream(spliterator(caller, rangeSize), true);
+}
+/**
+ * makes a spliterator over every row of the table, in key order, that splits by key range
+ * @param <T> type of the business object
+ * @param caller class of the business object
+ * @param rangeSize number of key values read by one select
+ * @return the spliterator
+ * @throws SQLException if the key range could not be read
+ */
+public static <T extends AbstractPersistentBusinessObject<T>> Spliterator<T> spliterator(Class<T> caller, long rangeSize)
+                throws SQLException {
+    Preconditions.checkNotNull(caller);
+    Preconditions.checkArgument(rangeSize > 0L, "range size must be positive");
+    T proto = null;
+    try {
+        proto = caller.getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException ex) {
+        throw new PibException("PboScan can't make a " + caller.getName(), ex);
+    }
+    String id = proto.getIdFieldName();
+    String bounds = "select min(" + id + "), max(" + id + ") from " + proto.getTable();
+    String query = proto.getStringForSelect() + " where " + id + " >= ? and " + id + " <= ? order by " + id;
+    Connection myCon = DBConnectionPool.getReadConnection();
+    boolean empty = true;
+    long low = 0L;
+    long high = 0L;
+    SQLException problem = null;
+    try {
+        ResultSet rs = DBConnectionPool.prepare(myCon, bounds).executeQuery();
+        try {
+            if (rs.next()) {
+                low = rs.getLong(1);
+                empty = rs.wasNull();
+                high = rs.getLong(2);
+            }
+        } finally {
+            rs.close();
+        }
+    } catch (SQLException sqe) {
+        psLog.error("PboScan can't find the key range of " + caller.getName() + " doing " + bounds, sqe);
+        problem = sqe;
+        throw sqe;
+    } finally {
+        DBConnectionPool.returnCon(myCon, problem);
+    }
+    if (psLog.isInfoEnabled()) psLog.info("scanning " + caller.getName() + " keys " + low + " to " + high);
+    return new RangeSpliterator<T>(caller, query, rangeSize, low, high, empty);
+}
+
+/**
+ * the rows of one range of keys, read a select of rangeSize keys at a time. A split hands the
+ * lower half of the keys not yet read to the new spliterator.
+ */
+private static final class RangeSpliterator<T extends AbstractPersistentBusinessObject<T>> implements Spliterator<T> {
+    private final Class<T> caller;
+    private final String query;
+    private final long rangeSize;
+    /** lowest key not yet read */
+    private long low;
+    /** highest key of this range */
+    private final long high;
+    /** every key has been read */
+    private boolean exhausted;
+    /** rows read but not yet handed out */
+    private Iterator<T> buffer;
+
+    RangeSpliterator(Class<T> aCaller, String aQuery, long aRangeSize, long aLow, long aHigh, boolean empty) {
+        caller = aCaller;
+        query = aQuery;
+        rangeSize = aRangeSize;
+        low = aLow;
+        high = aHigh;
+        exhausted = empty;
+    }
+    public boolean tryAdvance(Consumer<? super T> action) {
+        Preconditions.checkNotNull(action);
+        while (buffer == null || !buffer.hasNext()) {
+            if (exhausted) return false;
+            buffer = readNext().iterator();
+        }
+        action.accept(buffer.next());
+        return true;
+    }
+    public Spliterator<T> trySplit() {
+        if (exhausted || (buffer != null && buffer.hasNext())) return null;
+        long width = high - low;
+        if (width < rangeSize) return null;
+        long selects = width / rangeSize + 1;
+        long mid = low + (selects / 2) * rangeSize;
+        RangeSpliterator<T> rval = new RangeSpliterator<T>(caller, query, rangeSize, low, mid - 1, false);
+        low = mid;
+        return rval;
+    }
+    public long estimateSize() {
+        if (exhausted) return 0L;
+        long rval = high - low + 1;
+        return rval > 0L ? rval : Long.MAX_VALUE;
+    }
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+    /**
+     * selects the next rangeSize keys
+     * @return their rows
+     */
+    private List<T> readNext() {
+        long last = (high - low < rangeSize) ? high : low + rangeSize - 1;
+        List<T> rval = select(low, last);
+        if (last == high) {
+            exhausted = true;
+        } else {
+            low = last + 1;
+        }
+        return rval;
+    }
+    private List<T> select(long from, long to) {
+        Connection myCon = null;
+        SQLException problem = null;
+        try {
+            myCon = DBConnectionPool.getReadConnection();
+            PreparedStatement ps = DBConnectionPool.prepare(myCon, query);
+            DBUtil.bind(ps, Long.valueOf(from), Long.valueOf(to));
+            ResultSet rs = ps.executeQuery();
+            List<T> rval = null;
+            try {
+                rval = AbstractPersistentBusinessObject.returnResultList(rs, caller, false);
+            } finally {
+                rs.close();
+            }
+            return rval;
+        } catch (SQLException sqe) {
+            String msg = String.format("PboScan of %s caught Sql reading keys %d to %d", caller.getName(), from, to);
+            psLog.error(msg, sqe);
+            problem = sqe;
+            throw new PibException(msg, sqe);
+        } finally {
+            if (myCon != null) DBConnectionPool.returnCon(myCon, problem);
+        }
+    }
+}
+}
@@ -23,6 +23,9 @@ package com.pfarrell.busobj;
  * The <code>UsePreparedStatement</code> interface declares {@link com.pfarrell.busobj.PersistentBusinessObject}s
  * that must use a PreparedStatement rather than inline strings for
  * saving and retreival.
+ * The statements can be run with {@link com.pfarrell.utils.database.DBUtil#executeUpdate} and
+ * {@link AbstractPersistentBusinessObject#factoryFromQueryString(String, Class, String...)},
+ * which keep them prepared in the statement cache of each pooled connection.
  *
  * @author pfarrell
  */
@@ -5,13 +5,27 @@
 package com.pfarrell.cache;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.pfarrell.utils.database.AbstractPersistentObject;
 import java.io.PrintWriter;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -32,19 +46,21 @@ public static final long MINIMUM_SLEEPTIME = TimeUnit.SECONDS.toMillis(1);
         /** lock for thread safety */
 protected ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
-    /** the sweep thread */
-protected Thread myThread;
-    /** interval (in milliseconds) for the sweep thread to nap */
+    /** name of this cache, handy for debugging */
+protected volatile String myName = defaultName;
+    /** the name was given with {@link #setName}, so it is stable, and snapshots may use it */
+protected volatile boolean explicitName = false;
+    /** class of the values, if the maker said, snapshots check it */
+protected volatile Class<?> valueType;
+    /** pending sweep on the shared {@link SweepScheduler} */
+protected volatile ScheduledFuture<?> sweepTask;
+    /** interval (in milliseconds) between sweeps */
     protected long mySweepInterval;
+    /** fraction of the interval the sweeps are randomly moved by */
+    protected volatile double sweepJitter = CacheFactory.getCommonSweepJitter();
 
-    /** number of sweep cycles we have done */
-    protected long numSweeps = 0;
-    /** number of values found (hits) */
-    protected long numHits = 0;
-    /** number of misses */
-    protected long numMiss = 0;
-    /** count of terribly slow searches performed */
-    protected long numSlowSearches = 0;
+    /** striped hit/miss/sweep counters and latency histograms */
+    protected final CacheStatistics stats = new CacheStatistics();
 /** universal flag for continued running */
 protected AtomicBoolean okFlag = new AtomicBoolean(true);
 /** type of most recent object "put" to cache */
@@ -52,6 +68,14 @@ protected String breadcrumb;
 
     /** our internal data map */
 protected ConcurrentHashMap<K, WorkingSetObject<V>> theCache =  new ConcurrentHashMap<K, WorkingSetObject<V>>();
+    /** where the garbage collector tells us about cleared values */
+protected final ReferenceQueue<V> collectedQueue = new ReferenceQueue<V>();
+    /** optional value to key index, null when not enabled */
+protected volatile ValueIndex<K> valueIndex;
+    /** optional off heap second tier for evicted values, null when not enabled */
+protected volatile OffHeapStore<K> offHeap;
+    /** loads under way, so concurrent misses on a key share one load */
+private final ConcurrentHashMap<K, FutureTask<V>> loadsInFlight = new ConcurrentHashMap<K, FutureTask<V>>();
     
 /** default constructor is package private, only the Factory should create them */
 protected AbstractWSCache() {
@@ -67,13 +91,9 @@ protected AbstractWSCache(long nap, V instance) {
         awscLog.fatal("AWC nap too short");
         Preconditions.checkArgument(nap > MINIMUM_SLEEPTIME, "AWC nap too short");
     }
-    myThread = new Thread(this);
-    if (instance == null) {
-        myThread.setName(defaultName);
-    } else {
+    if (instance != null) {
         setThreadName(instance.getClass());
     }
-    myThread.setDaemon(true);
     mySweepInterval = nap;
     CacheFactory.addToTracker(this);
     start();
@@ -81,22 +101,46 @@ protected AbstractWSCache(long nap, V instance) {
 public abstract ImmutableSet<V> getValues();
 protected abstract void processPass();
 /**
- * sets the thread name, handy for debugging
+ * sets the cache name, handy for debugging
  * @param clz the class name, should be the same a V
  */
     public void setThreadName(Class clz) {
         Preconditions.checkNotNull(clz);
-        myThread.setName("aWSC:" + clz.getSimpleName());
+        if (explicitName) return;
+        myName = "aWSC:" + clz.getSimpleName();
     }
+/**
+ * gives the cache a fixed name, it is not changed later. Only caches named this way have
+ * snapshots, see {@link CacheFactory#setSnapshotDirectory}, so the name should be unique.
+ * @param arg the name
+ */
+public void setName(String arg) {
+    Preconditions.checkNotNull(arg);
+    Preconditions.checkArgument(!arg.isEmpty(), "cache name must not be empty");
+    myName = arg;
+    explicitName = true;
+}
+/**
+ * @return true if the name was given with {@link #setName}
+ */
+public boolean hasExplicitName() {
+    return explicitName;
+}
+/**
+ * @return class of the values, null if not known
+ */
+public Class<?> getValueType() {
+    return valueType;
+}
 /**
  * {@inheritDoc}
  * @return {@inheritDoc}
  */
     public String getName() {
-        String rval = myThread.getName();
-        if (rval.equals(defaultName) && breadcrumb != null) {
+        String rval = myName;
+        if (rval.equals(defaultName) && breadcrumb != null && !explicitName) {
             rval = "WSC:d:" + breadcrumb;
-            myThread.setName(rval);
+            myName = rval;
         }
         return rval;
     }
@@ -104,37 +148,48 @@ protected abstract void processPass();
  * start sweeping, protected so only subclasses can call it
  */
     protected final void start() {
-        myThread.start();
+        SweepScheduler.schedule(this);
     }
 /**
- * basic cache sweeper thread.
+ * does one sweep of the cache, called by the shared {@link SweepScheduler}.
  * Note: envoking programs do <i>not</i> need to explicitly call this.
  */
     public void run() {
-        while (okFlag.get()) {
-            try {
-                Thread.sleep(mySweepInterval);
-                numSweeps++;
-                processPass();
-            } catch (InterruptedException e) {
-                okFlag.set(false);
-            }
-        }
+        stats.recordSweep();
+        long start = stats.startTimer();
+        processPass();
+        stats.recordSweepTime(start);
     }
     /**
-     * stops thread.
+     * stops sweeping.
      */
     public void shutdown() {
         okFlag.set(false);
-        myThread.interrupt();
+        SweepScheduler.cancel(this);
     }
 /**
- * Safely starts this thread.
+ * Safely starts sweeping, does nothing if a sweep is already scheduled.
  */
 public void ensureRunning() {
-    if (myThread.isAlive()) return;
+    ScheduledFuture<?> task = sweepTask;
+    if (okFlag.get() && task != null && !task.isDone()) return;
+    okFlag.set(true);
     start();
 }
+/**
+ * sets how much the sweep interval is randomly varied, takes effect at the next sweep
+ * @param fraction fraction of the interval, from 0 (no jitter) to 0.5
+ */
+public void setSweepJitter(double fraction) {
+    Preconditions.checkArgument(fraction >= 0.0 && fraction <= 0.5);
+    sweepJitter = fraction;
+}
+/**
+ * @return fraction of the interval the sweeps are randomly moved by
+ */
+public double getSweepJitter() {
+    return sweepJitter;
+}
 
 /**
  * @return gets naptime
@@ -142,22 +197,246 @@ public void ensureRunning() {
 public long getNaptime() {
     return mySweepInterval;
 }
+/**
+ * @return time from one sweep to the next, in milliseconds, the naptime unless a cache
+ * sweeps only part of itself each time
+ */
+protected long getSweepDelay() {
+    return mySweepInterval;
+}
 /**
  * return number of entries in the cache
  * @return number of entries in the cache
  */
-public  int size() { return theCache.size();}
+public  int size() {
+    drainCollected();
+    int rval = 0;
+    for (ConcurrentHashMap<K, WorkingSetObject<V>> map : allMaps()) {
+        rval += map.size();
+    }
+    return rval;
+}
 /**
  * Returns true if this cache contains no key-value mappings.
  * @return  true if this cache contains no key-value mappings.
  */
-public boolean isEmpty() { return theCache.isEmpty();}
+public boolean isEmpty() {
+    drainCollected();
+    for (ConcurrentHashMap<K, WorkingSetObject<V>> map : allMaps()) {
+        if (!map.isEmpty()) return false;
+    }
+    return true;
+}
+/**
+ * gets the map that holds the argument key. There is just the one map, {@link #theCache},
+ * unless a subclass partitions the keys.
+ * @param key the key
+ * @return the map for the key
+ */
+protected ConcurrentHashMap<K, WorkingSetObject<V>> mapFor(K key) {
+    return theCache;
+}
+/**
+ * @return every map holding entries of this cache
+ */
+protected List<ConcurrentHashMap<K, WorkingSetObject<V>>> allMaps() {
+    return Collections.singletonList(theCache);
+}
 
 /**
  * Removes all entries in this cache.
  */
 public void clear() {
-    theCache.clear();
+    for (ConcurrentHashMap<K, WorkingSetObject<V>> map : allMaps()) {
+        map.clear();
+    }
+    ValueIndex<K> idx = valueIndex;
+    if (idx != null) idx.clear();
+    OffHeapStore<K> store = offHeap;
+    if (store != null) store.clear();
+}
+/**
+ * turns the off heap second tier on or off. With it on, values the sweeper evicts are
+ * serialized into a direct buffer of the argument size, and moved back into the cache
+ * when they are next asked for. Values that are not {@link java.io.Serializable} are just dropped.
+ * @param capacity size of the off heap store in bytes, zero to turn it off
+ */
+public void setOffHeapCapacity(long capacity) {
+    Preconditions.checkArgument(capacity >= 0L);
+    offHeap = capacity == 0L ? null : new OffHeapStore<K>(capacity, OffHeapStore.DEFAULT_BLOCK_SIZE);
+}
+/**
+ * @return the off heap store, or null if there is none
+ */
+public OffHeapStore<K> getOffHeapStore() {
+    return offHeap;
+}
+/**
+ * turns the value to key index on or off. With it on, {@link #contains} and {@link #getKeyForValue}
+ * are hash lookups rather than scans of the whole cache, at the cost of a little work on every
+ * put and remove. Cached values must not change their hash code while in the cache.
+ * @param enable true to build and maintain the index
+ */
+public void setValueIndexEnabled(boolean enable) {
+    if (!enable) {
+        valueIndex = null;
+        return;
+    }
+    if (valueIndex != null) return;
+    ValueIndex<K> idx = new ValueIndex<K>();
+    valueIndex = idx;
+    for (ConcurrentHashMap<K, WorkingSetObject<V>> map : allMaps()) {
+        for (Map.Entry<K, WorkingSetObject<V>> entry : map.entrySet()) {
+            if (entry.getValue().get() != null) {
+                idx.add(entry.getValue().valueHash, entry.getKey());
+            }
+        }
+    }
+}
+/**
+ * @return true if the value to key index is maintained
+ */
+public boolean isValueIndexEnabled() {
+    return valueIndex != null;
+}
+/**
+ * makes a new entry for the map, tied to our reference queue
+ * @param key the key
+ * @param value the value
+ * @return the new entry
+ */
+protected WorkingSetObject<V> newEntry(K key, V value) {
+    return new WorkingSetObject<V>(key, value, collectedQueue);
+}
+/**
+ * bookkeeping after an entry is put into the map
+ * @param key the key
+ * @param wso the new entry
+ */
+protected void entryAdded(K key, WorkingSetObject<V> wso) {
+    ValueIndex<K> idx = valueIndex;
+    if (idx != null) idx.add(wso.valueHash, key);
+}
+/**
+ * bookkeeping after an entry is taken out of the map, whether removed, replaced or evicted
+ * @param key the key
+ * @param wso the entry that was removed
+ */
+protected void entryRemoved(K key, WorkingSetObject<V> wso) {
+    ValueIndex<K> idx = valueIndex;
+    if (idx != null) idx.remove(wso.valueHash, key);
+}
+/**
+ * gets the removal generation of the key in the off heap store. An evicting sweep reads it
+ * before taking the entry out of the map, and hands it to {@link #entryEvicted}.
+ * @param key the key about to be evicted
+ * @return the generation, zero if there is no off heap store
+ */
+protected long spillGeneration(K key) {
+    OffHeapStore<K> store = offHeap;
+    return store == null ? 0L : store.generation(key);
+}
+/**
+ * bookkeeping after the sweeper or size bound throws out an entry, counts it and
+ * moves its value to the off heap store, if there is one, unless the key was removed
+ * since the generation was read.
+ * Call {@link #entryRemoved} as well.
+ * @param key the key
+ * @param wso the evicted entry
+ * @param generation {@link #spillGeneration} of the key, read before the entry left the map
+ */
+protected void entryEvicted(K key, WorkingSetObject<V> wso, long generation) {
+    stats.recordEviction();
+    OffHeapStore<K> store = offHeap;
+    if (store == null) return;
+    V value = wso.get();
+    if (value == null) return;
+    byte[] data = OffHeapStore.serialize(value);
+    if (data == null) {
+        store.recordRejected();
+        return;
+    }
+    store.put(key, data, generation);      // a put or remove since then bumped the generation
+}
+/**
+ * moves the value for the key from the off heap store back into the cache
+ * @param key the key that missed
+ * @return the value, or null if the off heap store does not have it
+ */
+@SuppressWarnings("unchecked")
+protected V promote(K key) {
+    OffHeapStore<K> store = offHeap;
+    if (store == null) return null;
+    byte[] data = store.take(key);
+    if (data == null) return null;
+    V value = (V) OffHeapStore.deserialize(data);
+    if (value == null) return null;
+    WorkingSetObject<V> wso = newEntry(key, value);
+    ConcurrentHashMap<K, WorkingSetObject<V>> map = mapFor(key);
+    WorkingSetObject<V> current = map.putIfAbsent(key, wso);
+    if (current != null) {
+        V live = current.get();
+        if (live != null) return live;      // someone put a newer value meanwhile
+        if (!map.replace(key, current, wso)) return null;
+        entryRemoved(key, current);
+    }
+    entryAdded(key, wso);
+    return value;
+}
+/**
+ * processes the values the garbage collector has cleared since the last call,
+ * dropping their entries from the cache and the value index
+ */
+@SuppressWarnings("unchecked")
+protected void drainCollected() {
+    Reference<? extends V> ref;
+    while ((ref = collectedQueue.poll()) != null) {
+        CacheReference<V> cref = (CacheReference<V>) ref;
+        K key = (K) cref.key;
+        WorkingSetObject<V> wso = mapFor(key).get(key);
+        if (wso != null && wso.obj == cref) {
+            removeCollected(key, wso);
+        } else {
+            // entry already gone or replaced, the index may still name it
+            ValueIndex<K> idx = valueIndex;
+            if (idx != null) idx.remove(cref.valueHash, key);
+        }
+    }
+}
+/**
+ * drops an entry whose value the garbage collector has cleared, counting it as collected
+ * @param key the key
+ * @param wso the entry, only removed if the key still maps to it
+ * @return true if the entry was removed
+ */
+protected boolean removeCollected(K key, WorkingSetObject<V> wso) {
+    if (mapFor(key).remove(key, wso)) {
+        entryRemoved(key, wso);
+        stats.recordCollected();
+        return true;
+    }
+    return false;
+}
+/**
+ * looks up the value in the value index, the index must be enabled.
+ * Marks the found entry as in use.
+ * @param value the value to look for
+ * @return the (first) key mapped to an equal value, null if none
+ */
+protected K indexedLookup(V value) {
+    ValueIndex<K> idx = valueIndex;
+    Preconditions.checkState(idx != null, "value index not enabled");
+    drainCollected();
+    for (K key : idx.candidates(value.hashCode())) {
+        WorkingSetObject<V> wso = mapFor(key).get(key);
+        if (wso == null) continue;
+        V obj = wso.get();
+        if (obj != null && obj.equals(value)) {
+            wso.usedThisCycle = true;
+            return key;
+        }
+    }
+    return null;
 }
 /**
  * returns a hashtable of handy-dandy statistics useful for calculating  and reporting
@@ -165,16 +444,58 @@ public void clear() {
  * @return hashtable of handy-dandy statistics
  */
 public  HashMap<String, Object> getStatistics() {
-    HashMap<String, Object> rval = new HashMap<String, Object>(10);
+    HashMap<String, Object> rval = new HashMap<String, Object>(32);
     rval.put("interval", new Long(mySweepInterval));
-    rval.put("sweeps", new Long(numSweeps));
-    rval.put("hits", new Long(numHits));
-    rval.put("misses", new Long(numMiss));
-    rval.put("size", new Long(theCache.size()));
-    rval.put("slowsrch", new Long (numSlowSearches ));
+    rval.put("size", new Long(size()));
     rval.put("approxActiveCount", new Long(size()));
+    stats.addTo(rval);
+    OffHeapStore<K> store = offHeap;
+    if (store != null) store.addTo(rval);
     return rval;
 }
+/**
+ * gets the live statistics object for this cache
+ * @return the statistics for this cache
+ */
+public CacheStatistics getCacheStatistics() {
+    return stats;
+}
+/**
+ * stands in for the old <code>numHits</code> field
+ * @return number of hits
+ * @deprecated use {@link CacheStatistics#getHits()} from {@link #getCacheStatistics()}
+ */
+@Deprecated
+protected long getNumHits() {
+    return stats.getHits();
+}
+/**
+ * stands in for the old <code>numMiss</code> field
+ * @return number of misses
+ * @deprecated use {@link CacheStatistics#getMisses()} from {@link #getCacheStatistics()}
+ */
+@Deprecated
+protected long getNumMiss() {
+    return stats.getMisses();
+}
+/**
+ * stands in for the old <code>numSlowSearches</code> field
+ * @return number of slow searches
+ * @deprecated use {@link CacheStatistics#getSlowSearches()} from {@link #getCacheStatistics()}
+ */
+@Deprecated
+protected long getNumSlowSearches() {
+    return stats.getSlowSearches();
+}
+/**
+ * stands in for the old <code>numSweeps</code> field
+ * @return number of sweeps
+ * @deprecated use {@link CacheStatistics#getSweeps()} from {@link #getCacheStatistics()}
+ */
+@Deprecated
+protected long getNumSweeps() {
+    return stats.getSweeps();
+}
 /**
  * write out a quick dump of the cache contents and status
  */
@@ -182,10 +503,12 @@ public  void quickDump(PrintWriter pw) {
     pw.println("quick dump");
     lock.readLock().lock();
     try {
-        Collection wsoColl = theCache.values();
-        for (Iterator it = wsoColl.iterator(); it.hasNext(); ) {
-            WorkingSetObject wso =  (WorkingSetObject) it.next();
-            pw.println(( wso.obj == null ) ? "null" :  wso.obj.toString() + " used: " + wso.usedThisCycle);
+        for (ConcurrentHashMap<K, WorkingSetObject<V>> map : allMaps()) {
+            Collection wsoColl = map.values();
+            for (Iterator it = wsoColl.iterator(); it.hasNext(); ) {
+                WorkingSetObject wso =  (WorkingSetObject) it.next();
+                pw.println(( wso.obj == null ) ? "null" :  wso.obj.toString() + " used: " + wso.usedThisCycle);
+            }
         }
     } finally {
         lock.readLock().unlock();
@@ -210,14 +533,21 @@ public  void quickDump(PrintWriter pw) {
         Preconditions.checkNotNull(key);
         Preconditions.checkNotNull(value);
         WorkingSetObject<V> rval = null;
+        long start = stats.startTimer();
+        drainCollected();
         lock.writeLock().lock();
         try {
             if (value != null && breadcrumb == null) breadcrumb = value.getClass().getSimpleName();
-            WorkingSetObject<V> wso = new WorkingSetObject<V>( value );
-            rval = theCache.put(key, wso);
+            WorkingSetObject<V> wso = newEntry(key, value);
+            rval = mapFor(key).put(key, wso);
+            if (rval != null) entryRemoved(key, rval);
+            entryAdded(key, wso);
+            OffHeapStore<K> store = offHeap;
+            if (store != null) store.remove(key);
         } finally {
             lock.writeLock().unlock();
         }
+        stats.recordPut(start);
         return (rval != null) ? rval.get() : null;
     }
     /**
@@ -231,13 +561,17 @@ public  void quickDump(PrintWriter pw) {
     public V remove(K key) {
         Preconditions.checkNotNull(key);
         WorkingSetObject<V> wso = null;
+        drainCollected();
         lock.writeLock().lock();
         try {
-            wso = theCache.remove(key);
+            wso = mapFor(key).remove(key);
+            OffHeapStore<K> store = offHeap;
+            if (store != null) store.remove(key);
             if (wso == null ) {
-                numMiss++;
+                stats.recordMiss();
             } else {
-                numHits++;
+                stats.recordHit();
+                entryRemoved(key, wso);
             }
         } finally {
             lock.writeLock().unlock();
@@ -246,6 +580,7 @@ public  void quickDump(PrintWriter pw) {
     }
     /**
      * Returns the value to which the specified key is mapped in this cache.
+     * An entry whose value has been collected is removed, and counted as a miss.
      *
      * @param   key   a key in the cache.
      * @return  the value to which the key is mapped in this cache;
@@ -256,21 +591,164 @@ public  void quickDump(PrintWriter pw) {
     public V get(K key) {
         Preconditions.checkNotNull(key);
         WorkingSetObject<V> wso = null;
+        V rval = null;
+        long start = stats.startTimer();
         lock.readLock().lock();
         try {
-            wso = theCache.get(key);
-            if (wso == null )  {
-                numMiss++;
+            wso = mapFor(key).get(key);
+            rval = wso == null ? null : wso.get();
+            if (rval == null )  {
+                if (wso != null) removeCollected(key, wso);
+                rval = promote(key);
+                if (rval == null) {
+                    stats.recordMiss();
+                } else {
+                    stats.recordHit();
+                }
             } else  {
-                numHits++;
+                stats.recordHit();
                 wso.usedThisCycle = true;
             }
         } finally {
             lock.readLock().unlock();
         }
-        return wso == null ? null :  wso.get();
+        stats.recordGet(start);
+        return rval;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public V get(final K key, final CacheLoader<? super K, ? extends V> loader) throws ExecutionException {
+        Preconditions.checkNotNull(key);
+        Preconditions.checkNotNull(loader);
+        V rval = get(key);
+        if (rval != null) return rval;
+        final boolean[] loaded = new boolean[1];
+        FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+            public V call() throws Exception {
+                V found = peek(key);        // another load may have finished since our get
+                if (found != null) return found;
+                loaded[0] = true;
+                return loader.load(key);
+            }
+        });
+        FutureTask<V> inFlight = loadsInFlight.putIfAbsent(key, task);
+        if (inFlight != null) {
+            stats.recordCoalescedLoad();
+            try {
+                return Uninterruptibles.getUninterruptibly(inFlight);
+            } catch (CancellationException ex) {
+                return get(key, loader);    // a refresh that could not be queued, load it ourselves
+            }
+        }
+        try {
+            // always run the task, even when the value turned up meanwhile, as callers may be waiting on it
+            long start = stats.startTimer();
+            task.run();
+            if (loaded[0]) stats.recordLoadTime(start);
+            try {
+                rval = Uninterruptibles.getUninterruptibly(task);
+            } catch (ExecutionException ex) {
+                stats.recordLoadFailure();
+                throw ex;
+            }
+            if (loaded[0] && rval != null) put(key, rval);
+        } finally {
+            loadsInFlight.remove(key, task);
+        }
+        return rval;
+    }
+    /**
+     * {@inheritDoc}
+     */
+    public ImmutableMap<K, V> getAll(Iterable<? extends K> keys, CacheLoader<? super K, ? extends V> loader)
+                throws ExecutionException {
+        Preconditions.checkNotNull(keys);
+        Preconditions.checkNotNull(loader);
+        LinkedHashMap<K, V> found = new LinkedHashMap<K, V>();
+        for (K key : keys) {
+            V value = get(key, loader);
+            if (value != null) found.put(key, value);
+        }
+        return ImmutableMap.copyOf(found);
+    }
+    /**
+     * starts a background reload of the key if its entry was loaded at least
+     * <code>refreshNanos</code> ago. The caller keeps the value it has, the reload swaps the
+     * new value into place when it is done. Does nothing if a load of the key is
+     * already under way, so a hot key gets only one reload, or if the value has changes not yet
+     * written, see {@link #isUnwritten}.
+     * @param key the key just read
+     * @param loader how to reload the value
+     * @param refreshNanos age at which an entry is reloaded
+     * @return true if a reload was started
+     */
+    protected boolean refreshIfDue(final K key, final CacheLoader<? super K, ? extends V> loader, long refreshNanos) {
+        final ConcurrentHashMap<K, WorkingSetObject<V>> map = mapFor(key);
+        final WorkingSetObject<V> wso = map.get(key);
+        if (wso == null || System.nanoTime() - wso.loadedNanos < refreshNanos) return false;
+        if (loadsInFlight.containsKey(key) || isUnwritten(wso.get())) return false;
+        final FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+            public V call() throws Exception {
+                return loader.load(key);
+            }
+        });
+        if (loadsInFlight.putIfAbsent(key, task) != null) return false;
+        boolean submitted = SweepScheduler.submitRefresh(new Runnable() {
+            public void run() {
+                try {
+                    long start = stats.startTimer();
+                    task.run();
+                    stats.recordLoadTime(start);
+                    V fresh = task.get();
+                    if (isUnwritten(wso.get())) return;  // changed here since the reload started
+                    if (fresh != null) {
+                        WorkingSetObject<V> replacement = newEntry(key, fresh);
+                        replacement.usedThisCycle = wso.usedThisCycle;
+                        if (map.replace(key, wso, replacement)) {
+                            entryRemoved(key, wso);
+                            entryAdded(key, replacement);
+                        }
+                    } else if (map.remove(key, wso)) {
+                        entryRemoved(key, wso);   // gone from the source
+                    }
+                } catch (ExecutionException ex) {
+                    stats.recordLoadFailure();
+                    awscLog.warn(myName + " refresh failed for " + key, ex.getCause());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    loadsInFlight.remove(key, task);
+                }
+            }
+        });
+        if (!submitted) {
+            loadsInFlight.remove(key, task);
+            task.cancel(false);
+            return false;
+        }
+        stats.recordRefresh();
+        return true;
+    }
+    /**
+     * tells if a value has changes this node has not written yet, such as a save waiting in the
+     * write-behind queue. A refresh reads the row as it was, so it must not replace such a value.
+     * @param value a cached value, may be null
+     * @return true if the value is a dirty persistent object
+     */
+    protected static boolean isUnwritten(Object value) {
+        return value instanceof AbstractPersistentObject && ((AbstractPersistentObject<?>) value).isDirty();
+    }
+    /**
+     * gets the value for the key without counting a hit or miss, or marking it in use
+     * @param key the key
+     * @return the live value, or null
+     */
+    protected V peek(K key) {
+        WorkingSetObject<V> wso = mapFor(key).get(key);
+        return wso == null ? null : wso.get();
+    }
 
 /**
  * local class that contains the real object and the inUse flag
@@ -278,6 +756,10 @@ public  void quickDump(PrintWriter pw) {
 static public class WorkingSetObject<V> {
     /** flag that this one was touched */
     boolean usedThisCycle;
+    /** when the object was put, from <code>System.nanoTime()</code> */
+    final long loadedNanos = System.nanoTime();
+    /** hash code of the cached object, kept for the value index */
+    final int valueHash;
     /** cached object */
     private final SoftReference<V> obj;
     /**
@@ -286,11 +768,38 @@ static public class WorkingSetObject<V> {
      */
     WorkingSetObject(V rhs) {
         usedThisCycle = true;
+        valueHash = rhs.hashCode();
         obj = new SoftReference<V>(rhs);
     }
+    /**
+     * construct a WorkingSetObject that reports to the queue when its object is collected
+     * @param key the key the object is cached under
+     * @param rhs object to cache
+     * @param queue queue the cleared reference is put on
+     */
+    WorkingSetObject(Object key, V rhs, ReferenceQueue<? super V> queue) {
+        usedThisCycle = true;
+        valueHash = rhs.hashCode();
+        obj = new CacheReference<V>(key, rhs, valueHash, queue);
+    }
     V get() {
         return obj.get();
     }
 }
+/**
+ * soft reference that remembers which key it was cached under,
+ * so a cleared reference can be tied back to its entry
+ */
+static class CacheReference<V> extends SoftReference<V> {
+    /** the key of the entry */
+    final Object key;
+    /** hash code of the referent */
+    final int valueHash;
+    CacheReference(Object aKey, V referent, int hash, ReferenceQueue<? super V> queue) {
+        super(referent, queue);
+        key = aKey;
+        valueHash = hash;
+    }
+}
 
 }
\ No newline at end of file
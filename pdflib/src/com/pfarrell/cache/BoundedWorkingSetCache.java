@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.cache;
+
+import com.google.common.base.Preconditions;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The <code>BoundedWorkingSetCache</code> class is a {@link DenningCache} with a hard maximum number
+ * of entries. Unlike the {@link WorkingSetCache}, which only drops entries that went a whole sweep
+ * without being touched, this cache evicts as soon as it is full, using the W-TinyLFU policy:
+ * <ul>
+ * <li>new entries go into a small LRU <i>window</i>, about one percent of the cache
+ * <li>the rest of the cache is a segmented LRU, split into <i>probation</i> and <i>protected</i>
+ * (eighty percent) segments. A hit in probation promotes the entry to protected.
+ * <li>when the window overflows, its oldest entry is only admitted to the main cache if a
+ * {@link FrequencySketch} says it has been used more often than the entry it would push out.
+ * </ul>
+ * Reads are lock free, as in {@link ConcurrentWorkingSetCache}. The LRU reordering on a hit is done
+ * only if the policy lock is free; under heavy contention some reorderings are skipped, which
+ * costs a little accuracy but never blocks a reader. A read that finds a collected value drops
+ * the entry without waiting either, the LRU lists catch up at the next write. Only a miss that
+ * promotes a value from the off-heap tier waits for the policy lock. Writes always take the
+ * policy lock so the bound is exact.
+ * <p>
+ * The sweep no longer ages entries out, it just drops entries whose soft references the
+ * garbage collector has cleared.
+ * <p>
+ * Select it with <code>CacheFactory.setWscClass(BoundedWorkingSetCache.class)</code>, the bound
+ * is taken from {@link CacheFactory#getCommonMaximumSize()}.
+ *
+ * @param <K> generic type of key
+ * @param <V> generic type of value
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+public class BoundedWorkingSetCache<K, V> extends ConcurrentWorkingSetCache<K, V> {
+/** maximum number of entries */
+private final int maximumSize;
+/** maximum number of entries in the admission window */
+private final int windowMax;
+/** maximum number of entries in the main (probation plus protected) space */
+private final int mainMax;
+/** maximum number of entries in the protected segment */
+private final int protectedMax;
+/** guards the three LRU lists and the sketch reset */
+private final ReentrantLock policyLock = new ReentrantLock();
+/** admission window, in LRU order */
+private final LinkedHashSet<K> window = new LinkedHashSet<K>();
+/** main probation segment, in LRU order */
+private final LinkedHashSet<K> probation = new LinkedHashSet<K>();
+/** main protected segment, in LRU order */
+private final LinkedHashSet<K> protectedSeg = new LinkedHashSet<K>();
+/** popularity estimates */
+private final FrequencySketch sketch;
+/** collected keys still in the LRU lists, dropped by the next holder of the policy lock */
+private final ConcurrentLinkedQueue<K> staleKeys = new ConcurrentLinkedQueue<K>();
+
+/**
+ * constructor, accept time for sweep cycle, uses the common maximum size
+ * @param nap time to sleep between cycles (in milliseconds)
+ */
+    public BoundedWorkingSetCache(long nap) {
+        this(nap, null, CacheFactory.getCommonMaximumSize());
+    }
+/**
+ * constructor, accept time for sweep cycle and instance for name, uses the common maximum size
+ * @param nap time to sleep between cycles (in milliseconds)
+ * @param instance an instance of type V
+ */
+    public BoundedWorkingSetCache(long nap, V instance) {
+        this(nap, instance, CacheFactory.getCommonMaximumSize());
+    }
+/**
+ * constructor, accept time for sweep cycle, instance for name and the maximum size
+ * @param nap time to sleep between cycles (in milliseconds)
+ * @param instance an instance of type V
+ * @param maxSize maximum number of entries, must be at least two
+ */
+    public BoundedWorkingSetCache(long nap, V instance, int maxSize) {
+        super(checkedNap(nap, maxSize), instance);
+        maximumSize = maxSize;
+        windowMax = Math.max(1, maxSize / 100);
+        mainMax = maxSize - windowMax;
+        protectedMax = Math.max(1, mainMax * 8 / 10);
+        sketch = new FrequencySketch(maxSize);
+    }
+/**
+ * validate the maximum size before the super constructor registers the cache
+ * @param nap time to sleep between cycles (in milliseconds)
+ * @param maxSize maximum number of entries
+ * @return nap, unchanged
+ */
+private static long checkedNap(long nap, int maxSize) {
+    Preconditions.checkArgument(maxSize > 1, "maximum size must be at least two");
+    return nap;
+}
+/**
+ * @return the maximum number of entries this cache will hold
+ */
+public int getMaximumSize() {
+    return maximumSize;
+}
+/**
+ * drop entries whose values have been collected, the size bound does the real eviction.
+ */
+    @Override
+protected void processPass() {
+    drainCollected();
+    Iterator<Map.Entry<K, WorkingSetObject<V>>> it = theCache.entrySet().iterator();
+    while (it.hasNext()) {
+        Map.Entry<K, WorkingSetObject<V>> entry = it.next();
+        WorkingSetObject<V> wso = entry.getValue();
+        wso.usedThisCycle = false;
+        if (wso.get() == null) {
+            removeCollected(entry.getKey(), wso);
+        }
+    }
+    policyLock.lock();
+    try {
+        dropStaleKeys();
+    } finally {
+        policyLock.unlock();
+    }
+}
+    /**
+     * {@inheritDoc}
+     * Also drops the key from the LRU lists, later if another thread holds the policy lock.
+     */
+    @Override
+protected boolean removeCollected(K key, WorkingSetObject<V> wso) {
+    boolean rval = super.removeCollected(key, wso);
+    if (rval) {
+        if (policyLock.tryLock()) {
+            try {
+                removeFromPolicy(key);
+            } finally {
+                policyLock.unlock();
+            }
+        } else {
+            staleKeys.add(key);
+        }
+    }
+    return rval;
+}
+    /**
+     * {@inheritDoc}
+     * If this is a new key and the cache is full, some entry, possibly this one, is evicted.
+     */
+    @Override
+public V put(K key, V value) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkNotNull(value);
+    long start = stats.startTimer();
+    drainCollected();
+    if (breadcrumb == null) breadcrumb = value.getClass().getSimpleName();
+    WorkingSetObject<V> rval = null;
+    sketch.increment(key);
+    policyLock.lock();
+    try {
+        dropStaleKeys();
+        WorkingSetObject<V> wso = newEntry(key, value);
+        rval = theCache.put(key, wso);
+        if (rval != null) entryRemoved(key, rval);
+        entryAdded(key, wso);
+        OffHeapStore<K> store = offHeap;
+        if (store != null) store.remove(key);
+        if (rval != null) {
+            onAccess(key);
+        } else {
+            removeFromPolicy(key);      // may still be listed, if it was collected
+            window.add(key);
+            evictIfNeeded();
+        }
+    } finally {
+        policyLock.unlock();
+    }
+    stats.recordPut(start);
+    return (rval != null) ? rval.get() : null;
+}
+    /**
+     * {@inheritDoc}
+     * A promoted value enters the admission window like a new entry.
+     */
+    @Override
+protected V promote(K key) {
+    if (offHeap == null) return null;
+    policyLock.lock();
+    try {
+        V rval = super.promote(key);
+        if (rval != null && !window.contains(key) && !probation.contains(key) && !protectedSeg.contains(key)) {
+            window.add(key);
+            evictIfNeeded();
+        }
+        return rval;
+    } finally {
+        policyLock.unlock();
+    }
+}
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+public V remove(K key) {
+    Preconditions.checkNotNull(key);
+    policyLock.lock();
+    try {
+        removeFromPolicy(key);
+        return super.remove(key);
+    } finally {
+        policyLock.unlock();
+    }
+}
+    /**
+     * {@inheritDoc}
+     * Never blocks, the LRU reorder is skipped if another thread holds the policy lock.
+     */
+    @Override
+public V get(K key) {
+    V rval = super.get(key);
+    if (rval != null) {
+        sketch.increment(key);
+        if (policyLock.tryLock()) {
+            try {
+                onAccess(key);
+            } finally {
+                policyLock.unlock();
+            }
+        }
+    }
+    return rval;
+}
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+public void clear() {
+    policyLock.lock();
+    try {
+        super.clear();
+        staleKeys.clear();
+        window.clear();
+        probation.clear();
+        protectedSeg.clear();
+        sketch.clear();
+    } finally {
+        policyLock.unlock();
+    }
+}
+/**
+ * move a touched key to the most recently used end of its list, promoting from probation
+ * to protected. Must hold the policy lock.
+ * @param key the touched key
+ */
+private void onAccess(K key) {
+    if (window.remove(key)) {
+        window.add(key);
+    } else if (probation.remove(key)) {
+        protectedSeg.add(key);
+        while (protectedSeg.size() > protectedMax) {
+            K demoted = first(protectedSeg);
+            protectedSeg.remove(demoted);
+            probation.add(demoted);
+        }
+    } else if (protectedSeg.remove(key)) {
+        protectedSeg.add(key);
+    }
+}
+/**
+ * move entries out of the overflowing window, admitting them to the main space only if they
+ * are more popular than the victim. Must hold the policy lock.
+ */
+private void evictIfNeeded() {
+    while (window.size() > windowMax) {
+        K candidate = first(window);
+        window.remove(candidate);
+        if (probation.size() + protectedSeg.size() < mainMax) {
+            probation.add(candidate);
+            continue;
+        }
+        K victim = probation.isEmpty() ? first(protectedSeg) : first(probation);
+        if (sketch.frequency(candidate) > sketch.frequency(victim)) {
+            evict(victim);
+            probation.add(candidate);
+        } else {
+            evict(candidate);
+        }
+    }
+}
+/**
+ * throw out the argument key. Must hold the policy lock.
+ * @param key the key to evict
+ */
+private void evict(K key) {
+    removeFromPolicy(key);
+    long generation = spillGeneration(key);
+    WorkingSetObject<V> wso = theCache.remove(key);
+    if (wso != null) {
+        entryRemoved(key, wso);
+        entryEvicted(key, wso, generation);
+    }
+}
+/**
+ * drops the collected keys left by readers from the LRU lists, unless they are back in the
+ * cache. Must hold the policy lock.
+ */
+private void dropStaleKeys() {
+    K key;
+    while ((key = staleKeys.poll()) != null) {
+        if (!theCache.containsKey(key)) removeFromPolicy(key);
+    }
+}
+private void removeFromPolicy(K key) {
+    if (!window.remove(key) && !probation.remove(key)) {
+        protectedSeg.remove(key);
+    }
+}
+private static <T> T first(LinkedHashSet<T> set) {
+    return set.iterator().next();
+}
+}
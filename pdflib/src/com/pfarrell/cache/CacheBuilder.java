@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.cache;
+
+import com.google.common.base.Preconditions;
+import com.pfarrell.busobj.AbstractPersistentBusinessObject;
+import com.pfarrell.busobj.Cacheable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The <code>CacheBuilder</code> class makes configured caches without the reflection of
+ * {@link CacheFactory#makeWSCinstance(Object)}. Every setting is checked as it is made, and
+ * {@link #build()} either returns a running cache or throws, it never returns null.
+ * The caches are tracked, so {@link CacheFactory#closeAllThreads} stops them, as usual.
+ * <pre>
+ *   DatabaseCache&lt;Long, User&gt; users = CacheBuilder.newBuilder()
+ *           .sweepInterval(2, TimeUnit.MINUTES)
+ *           .refreshMode(DatabaseCache.RefreshMode.INCREMENTAL)
+ *           .buildDatabaseCache(User.class);
+ * </pre>
+ * Unset values default from the common settings of {@link CacheFactory}. The kind of cache
+ * follows from the settings: a maximum size gives a {@link BoundedWorkingSetCache}, a number of
+ * shards a {@link ShardedWorkingSetCache}, <code>concurrent(true)</code> a
+ * {@link ConcurrentWorkingSetCache}, otherwise a {@link WorkingSetCache}.
+ * A builder may be reused, each build makes a new cache.
+ *
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+public final class CacheBuilder {
+/** marks a setting that was not made */
+private static final int UNSET = -1;
+
+private long sweepInterval = CacheFactory.getCommonSleepTime();
+private double sweepJitter = CacheFactory.getCommonSweepJitter();
+private int maximumSize = UNSET;
+private boolean concurrent = false;
+private int shards = UNSET;
+private boolean recordStats = true;
+private boolean valueIndex = false;
+private long offHeapCapacity = 0L;
+private String name;
+private DatabaseCache.RefreshMode refreshMode = DatabaseCache.RefreshMode.FULL;
+private long staleAfterNanos = 0L;
+private double refreshAheadFraction = 1.0;
+
+private CacheBuilder() {
+}
+/**
+ * @return a builder with the common settings
+ */
+public static CacheBuilder newBuilder() {
+    return new CacheBuilder();
+}
+/**
+ * sets the time between sweeps
+ * @param duration the interval
+ * @param unit unit of the interval
+ * @return this builder
+ */
+public CacheBuilder sweepInterval(long duration, TimeUnit unit) {
+    Preconditions.checkNotNull(unit);
+    long millis = unit.toMillis(duration);
+    Preconditions.checkArgument(millis >= AbstractWSCache.MINIMUM_SLEEPTIME, "sweep interval too short");
+    sweepInterval = millis;
+    return this;
+}
+/**
+ * sets how much the sweep interval is randomly varied
+ * @param fraction from 0 (no jitter) to 0.5
+ * @return this builder
+ */
+public CacheBuilder sweepJitter(double fraction) {
+    Preconditions.checkArgument(fraction >= 0.0 && fraction <= 0.5);
+    sweepJitter = fraction;
+    return this;
+}
+/**
+ * bounds the number of entries, making a {@link BoundedWorkingSetCache}. Not for database caches.
+ * @param arg maximum number of entries, at least two
+ * @return this builder
+ */
+public CacheBuilder maximumSize(int arg) {
+    Preconditions.checkArgument(arg > 1, "maximum size must be at least two");
+    maximumSize = arg;
+    return this;
+}
+/**
+ * asks for the lock free {@link ConcurrentWorkingSetCache}. Not for database caches.
+ * @param arg true for lock free reads and writes
+ * @return this builder
+ */
+public CacheBuilder concurrent(boolean arg) {
+    concurrent = arg;
+    return this;
+}
+/**
+ * splits the keys over segments, making a {@link ShardedWorkingSetCache}. Not for bounded
+ * or database caches.
+ * @param arg number of segments, rounded up to a power of two
+ * @return this builder
+ */
+public CacheBuilder shards(int arg) {
+    Preconditions.checkArgument(arg > 0 && arg <= (1 << 16), "shards must be from 1 to 65536");
+    shards = arg;
+    return this;
+}
+/**
+ * turns timing of get/put/sweep/load on or off, the counters are always kept
+ * @param arg true to record timings
+ * @return this builder
+ */
+public CacheBuilder recordStats(boolean arg) {
+    recordStats = arg;
+    return this;
+}
+/**
+ * turns the value to key index on or off, see {@link AbstractWSCache#setValueIndexEnabled}
+ * @param arg true to keep the index
+ * @return this builder
+ */
+public CacheBuilder valueIndex(boolean arg) {
+    valueIndex = arg;
+    return this;
+}
+/**
+ * adds an off heap second tier, see {@link AbstractWSCache#setOffHeapCapacity}
+ * @param bytes size of the off heap store, zero for none
+ * @return this builder
+ */
+public CacheBuilder offHeapCapacity(long bytes) {
+    Preconditions.checkArgument(bytes >= 0L);
+    offHeapCapacity = bytes;
+    return this;
+}
+/**
+ * sets the name of the cache, otherwise it is named after the value class, if known.
+ * A named cache has a snapshot, see {@link CacheFactory#setSnapshotDirectory}, so the name
+ * should be unique.
+ * @param arg the name
+ * @return this builder
+ */
+public CacheBuilder name(String arg) {
+    Preconditions.checkNotNull(arg);
+    name = arg;
+    return this;
+}
+/**
+ * sets how a database cache refreshes its values
+ * @param arg the refresh mode
+ * @return this builder
+ */
+public CacheBuilder refreshMode(DatabaseCache.RefreshMode arg) {
+    Preconditions.checkNotNull(arg);
+    refreshMode = arg;
+    return this;
+}
+/**
+ * turns on refresh-ahead for a database cache, see {@link DatabaseCache#setRefreshAhead}
+ * @param staleAfter age at which an entry is stale
+ * @param unit unit of staleAfter
+ * @param fraction how far toward the deadline a read starts the reload
+ * @return this builder
+ */
+public CacheBuilder refreshAhead(long staleAfter, TimeUnit unit, double fraction) {
+    Preconditions.checkArgument(staleAfter >= 0L);
+    Preconditions.checkNotNull(unit);
+    Preconditions.checkArgument(fraction > 0.0 && fraction <= 1.0);
+    staleAfterNanos = unit.toNanos(staleAfter);
+    refreshAheadFraction = fraction;
+    return this;
+}
+/**
+ * makes a running, tracked cache
+ * @param <K> generic type of key
+ * @param <V> generic type of value
+ * @return the new cache
+ * @throws IllegalStateException if database only settings were made
+ */
+public <K, V> AbstractWSCache<K, V> build() {
+    AbstractWSCache<K, V> rval = make();
+    warmUp(rval);
+    return rval;
+}
+private <K, V> AbstractWSCache<K, V> make() {
+    Preconditions.checkState(refreshMode == DatabaseCache.RefreshMode.FULL && staleAfterNanos == 0L,
+                    "refresh settings need buildDatabaseCache()");
+    Preconditions.checkState(maximumSize == UNSET || shards == UNSET, "a bounded cache can not be sharded");
+    AbstractWSCache<K, V> rval = null;
+    if (maximumSize != UNSET) {
+        rval = new BoundedWorkingSetCache<K, V>(sweepInterval, null, maximumSize);
+    } else if (shards != UNSET) {
+        rval = new ShardedWorkingSetCache<K, V>(sweepInterval, null, shards);
+    } else if (concurrent) {
+        rval = new ConcurrentWorkingSetCache<K, V>(sweepInterval);
+    } else {
+        rval = new WorkingSetCache<K, V>(sweepInterval);
+    }
+    configure(rval);
+    return rval;
+}
+/**
+ * makes a running, tracked cache, named after the value class
+ * @param <K> generic type of key
+ * @param <V> generic type of value
+ * @param valueClass class of the values, used for the name
+ * @return the new cache
+ */
+public <K, V> AbstractWSCache<K, V> build(Class<V> valueClass) {
+    Preconditions.checkNotNull(valueClass);
+    AbstractWSCache<K, V> rval = make();
+    rval.valueType = valueClass;
+    if (name == null) rval.setThreadName(valueClass);
+    warmUp(rval);
+    return rval;
+}
+/**
+ * makes a running, tracked database cache for the argument class
+ * @param <K> generic type of key, nearly always Long
+ * @param <V> the business object class
+ * @param valueClass class of the values, needed to load them
+ * @return the new cache
+ * @throws IllegalStateException if a maximum size, shards or the concurrent cache was asked for
+ */
+public <K extends Comparable<? super K>, V extends AbstractPersistentBusinessObject<V> & Cacheable<K, V>>
+            DatabaseCache<K, V> buildDatabaseCache(Class<V> valueClass) {
+    Preconditions.checkNotNull(valueClass);
+    Preconditions.checkState(maximumSize == UNSET && shards == UNSET && !concurrent,
+                    "a DatabaseCache can not be bounded, sharded or concurrent");
+    DatabaseCache<K, V> rval = new DatabaseCache<K, V>(sweepInterval);
+    rval.valueClass = valueClass;
+    rval.setThreadName(valueClass);
+    rval.setRefreshMode(refreshMode);
+    if (staleAfterNanos > 0L) {
+        rval.setRefreshAhead(staleAfterNanos, TimeUnit.NANOSECONDS, refreshAheadFraction);
+    }
+    configure(rval);
+    warmUp(rval);
+    return rval;
+}
+private void configure(AbstractWSCache<?, ?> cache) {
+    cache.setSweepJitter(sweepJitter);
+    cache.getCacheStatistics().setRecordTimings(recordStats);
+    if (valueIndex) cache.setValueIndexEnabled(true);
+    if (offHeapCapacity > 0L) cache.setOffHeapCapacity(offHeapCapacity);
+    if (name != null) cache.setName(name);
+}
+/** fills a named cache from its snapshot, if snapshots are on */
+private void warmUp(AbstractWSCache<?, ?> cache) {
+    if (name != null) CacheFactory.restoreSnapshot(cache);
+}
+}
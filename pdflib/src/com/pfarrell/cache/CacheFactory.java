@@ -7,9 +7,14 @@ package com.pfarrell.cache;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.pfarrell.busobj.AbstractPersistentBusinessObject;
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.apache.log4j.Logger;
@@ -29,7 +34,18 @@ private static final Logger cfLog = Logger.getLogger(CacheFactory.class);
 private static Class wscClass;
 private static Class dbcClass;
 private static long sleepTime = TimeUnit.MINUTES.toMillis(6);
+private static int maximumSize = 10000;
+private static double sweepJitter = 0.1;
 private static CacheTracker theTracker = new CacheTracker();
+/** where cache snapshots are kept, null for no snapshots */
+private static volatile File snapshotDir;
+private static volatile boolean snapshotValues = false;
+private static volatile int snapshotMaxKeys = 10000;
+private static ScheduledFuture<?> snapshotTask;
+/** run by closeAllThreads before the shared threads stop, in the order they were added */
+private static final List<Runnable> closeTasks = new CopyOnWriteArrayList<Runnable>();
+/** constructors of custom cache classes, by class name and number of arguments */
+private static final ConcurrentHashMap<String, Constructor> knownCtors = new ConcurrentHashMap<String, Constructor>();
 
 private static ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
@@ -51,6 +67,150 @@ public static long getCommonSleepTime() {
 public static void setCommonSleepToMinimum() {
     sleepTime = AbstractWSCache.MINIMUM_SLEEPTIME;
 }
+/**
+ * set the fraction by which the sweep interval of subsequent caches is randomly varied,
+ * so that caches created together do not all sweep at the same moment
+ * @param arg fraction of the interval, from 0 (no jitter) to 0.5
+ */
+public static void setCommonSweepJitter(double arg) {
+    Preconditions.checkArgument(arg >= 0.0 && arg <= 0.5);
+    sweepJitter = arg;
+}
+/**
+ * gets the sweep jitter for subsequent instances of a cache
+ * @return fraction of the interval by which sweeps are varied
+ */
+public static double getCommonSweepJitter() {
+    return sweepJitter;
+}
+/**
+ * set the maximum number of entries for subsequent instances of a size bounded cache,
+ * such as the {@link BoundedWorkingSetCache}
+ * @param arg maximum number of entries
+ */
+public static void setCommonMaximumSize(int arg) {
+    Preconditions.checkArgument(arg > 1);
+    maximumSize = arg;
+}
+/**
+ * gets the maximum number of entries for subsequent instances of a size bounded cache
+ * @return maximum number of entries of bounded caches we make.
+ */
+public static int getCommonMaximumSize() {
+    return maximumSize;
+}
+/**
+ * turns warm start snapshots on or off. With a directory set, {@link #closeAllThreads} writes the
+ * working set of every tracked cache with a name given by {@link AbstractWSCache#setName} there,
+ * and each such cache is filled from its snapshot in the background when it is made by
+ * {@link CacheBuilder}, or passed to {@link #restoreSnapshot}. A {@link DatabaseCache} is
+ * restored from its keys, it selects the rows in batches; other caches need the values.
+ * @param dir directory for the snapshot files, null to turn snapshots off
+ * @param withValues true to store the serialized values, not just the keys
+ */
+public static void setSnapshotDirectory(File dir, boolean withValues) {
+    Preconditions.checkArgument(dir == null || dir.isDirectory(), "snapshot directory must exist");
+    snapshotDir = dir;
+    snapshotValues = withValues;
+}
+/**
+ * @return directory for the snapshot files, null if snapshots are off
+ */
+public static File getSnapshotDirectory() {
+    return snapshotDir;
+}
+/**
+ * sets the most keys written to one cache's snapshot, the ones used most recently are kept
+ * @param arg maximum number of keys
+ */
+public static void setSnapshotMaxKeys(int arg) {
+    Preconditions.checkArgument(arg > 0);
+    snapshotMaxKeys = arg;
+}
+/**
+ * also writes snapshots periodically, so a crash does not lose them all. Runs on the sweeper
+ * pool, and stops at {@link #closeAllThreads}.
+ * @param interval time between snapshots, zero to stop the periodic snapshots
+ * @param unit unit of the interval
+ */
+public static void setSnapshotInterval(long interval, TimeUnit unit) {
+    Preconditions.checkArgument(interval >= 0L);
+    Preconditions.checkNotNull(unit);
+    lock.writeLock().lock();
+    try {
+        if (snapshotTask != null) {
+            snapshotTask.cancel(false);
+            snapshotTask = null;
+        }
+        if (interval > 0L) {
+            snapshotTask = SweepScheduler.getExecutor().scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        snapshotAll();
+                    }
+                }, interval, interval, unit);
+        }
+    } finally {
+        lock.writeLock().unlock();
+    }
+}
+/**
+ * writes a snapshot of every tracked cache, does nothing if snapshots are off
+ * @return number of caches written
+ */
+public static int snapshotAll() {
+    File dir = snapshotDir;
+    if (dir == null) return 0;
+    int rval = 0;
+    List<AbstractWSCache<?,?>> caches = theTracker.getKnownCaches();
+    for (AbstractWSCache<?,?> wsc : caches) {
+        if (!hasSnapshotName(wsc, caches)) continue;
+        try {
+            CacheSnapshot.save(dir, wsc, snapshotValues, snapshotMaxKeys);
+            rval++;
+        } catch (IOException ex) {
+            cfLog.error("can not snapshot " + wsc.getName(), ex);
+        }
+    }
+    return rval;
+}
+/**
+ * fills the argument cache from its snapshot, in the background. Caches made by this factory
+ * are restored automatically when snapshots are on.
+ * @param cache the cache to warm up
+ */
+public static void restoreSnapshot(final AbstractWSCache<?,?> cache) {
+    Preconditions.checkNotNull(cache);
+    final File dir = snapshotDir;
+    if (dir == null || !hasSnapshotName(cache, theTracker.getKnownCaches())) return;
+    SweepScheduler.submitRefresh(new Runnable() {
+        public void run() {
+            try {
+                CacheSnapshot.restore(dir, cache);
+            } catch (IOException ex) {
+                cfLog.warn("can not restore " + cache.getName(), ex);
+            } catch (RuntimeException ex) {
+                cfLog.warn("can not restore " + cache.getName(), ex);
+            }
+        }
+    });
+}
+/**
+ * checks that the cache has a name of its own, given by setName and used by no other
+ * tracked cache, as its snapshot file is named after it
+ * @param cache the cache
+ * @param caches the tracked caches
+ * @return true if the cache may have a snapshot
+ */
+private static boolean hasSnapshotName(AbstractWSCache<?,?> cache, List<AbstractWSCache<?,?>> caches) {
+    if (!cache.hasExplicitName()) return false;
+    for (AbstractWSCache<?,?> other : caches) {
+        if (other != cache && other.hasExplicitName() && other.getName().equals(cache.getName())) {
+            cfLog.warn("two caches are named " + cache.getName() + ", neither has a snapshot");
+            return false;
+        }
+    }
+    return true;
+}
 /**
  * tells this factory what DB class to use
  * @param aClass a DatabaseCache or mock to use to generate DatabaseCaches
@@ -80,10 +240,14 @@ public static void setDbcClass(Class aClass) {
    * sets up the factory to return a nice instance of an DenningCache -- note: once the instance is initialized,
    * it can not directly be changed, you must change it to null first, and then you can initialize it again. Will expliticly
    * call shutdown on instance when clearing it out.
-   * @param aClass a Cache or mock to use to generate WorkingSetCaches
+   * @param aClass a Cache or mock to use to generate WorkingSetCaches, must be a WorkingSetCache
    * @throws IllegalStateException if instance was setup and an attempt is made to set it to something else.
+   * @throws IllegalArgumentException if the class is not a WorkingSetCache
    */
 public static void setWscClass(Class aClass) {
+    Preconditions.checkArgument(aClass == null || WorkingSetCache.class.isAssignableFrom(aClass),
+                    "%s is not a WorkingSetCache, make a ShardedWorkingSetCache with CacheBuilder.shards()",
+                    aClass == null ? null : aClass.getName());
     lock.writeLock().lock();
     try {
         if (wscClass == null) {
@@ -105,51 +269,36 @@ public static void setWscClass(Class aClass) {
     }
 }
 /**
- * create and return a {@link WorkingSetCache} object
+ * create and return a {@link WorkingSetCache} object. The stock cache classes are made
+ * directly, only a class set with {@link #setWscClass} that is not one of them is made by
+ * reflection. For typed configuration use {@link CacheBuilder}.
  * @param arg optional instance of the class we will cache, handy for setting name
- * @return a running WorkingSetCache
+ * @return a running WorkingSetCache, never null
+ * @throws IllegalStateException if the factory is not set up or the cache can not be made
  */
+@SuppressWarnings("unchecked")
 public static WorkingSetCache makeWSCinstance(Object arg) {
-    if (wscClass == null) {
+    Class clz = wscClass;
+    if (clz == null) {
         cfLog.fatal("null result in getInstance in CacheFactory");
         throw new IllegalStateException(" CacheFactory not initialized. "
                               + "Did you forget to call CacheFactory.setInstance() ?");
     }
     WorkingSetCache rval = null;
-    int numCtorArgs = arg == null ? 1 : 2;
-    cfLog.debug(String.format("makingWSC, num Args: %d", numCtorArgs));
-    try {
-        Constructor ctorToUse = null;
-        Constructor[] ctors = wscClass.getDeclaredConstructors();
-        for ( int i = 0; i < ctors.length && ctorToUse == null; i++) {
-            Constructor ctor = ctors[i];
-            Type[] types = ctor.getGenericParameterTypes();
-            switch (numCtorArgs) {
-                case 1:
-                    if ( types.length == numCtorArgs && types[0].toString().equals("long")) {
-                        ctorToUse = ctor;
-                    }
-                    break;
-                case 2:
-                    if (types.length == numCtorArgs && types[1].toString().equals("V")) {
-                        ctorToUse = ctor;
-                    }
-                    break;
-                default:
-                    String msg = "illegal number of arguments for constructor in CacheFactory";
-                    cfLog.fatal(msg);
-                    throw new IllegalStateException(msg);
-            }
-        }
-        rval = (WorkingSetCache) (numCtorArgs == 1 ? ctorToUse.newInstance(sleepTime) : ctorToUse.newInstance(sleepTime, arg) );
-        if (arg != null) {
-            rval.setThreadName(arg.getClass());
-        }
-        rval.ensureRunning();
-        theTracker.add(rval);
-    } catch (Exception ex) {
-        cfLog.fatal("most serious", ex);
+    if (clz == WorkingSetCache.class) {
+        rval = new WorkingSetCache(sleepTime);
+    } else if (clz == ConcurrentWorkingSetCache.class) {
+        rval = new ConcurrentWorkingSetCache(sleepTime);
+    } else if (clz == BoundedWorkingSetCache.class) {
+        rval = new BoundedWorkingSetCache(sleepTime);
+    } else {
+        rval = (WorkingSetCache) makeByReflection(clz, arg);
+    }
+    if (arg != null) {
+        rval.setThreadName(arg.getClass());
     }
+    rval.ensureRunning();
+    restoreSnapshot(rval);
     return rval;
 }
 /**
@@ -160,52 +309,70 @@ public static WorkingSetCache makeWSCinstance() {
     return makeWSCinstance(null);
 }
 /**
- * makes and gets an instance of the DatabaseCache
+ * makes and gets an instance of the DatabaseCache. The stock class is made directly, only a
+ * class set with {@link #setDbcClass} that is not DatabaseCache is made by reflection.
+ * For typed configuration use {@link CacheBuilder#buildDatabaseCache}.
  * @param pbo a Cachable PBO to use to set name of thread.
- * @return the DatabaseCache instance
+ * @return the DatabaseCache instance, never null
+ * @throws IllegalStateException if the factory is not set up or the cache can not be made
  */
+@SuppressWarnings("unchecked")
 public static DatabaseCache makeDBCinstance(AbstractPersistentBusinessObject pbo) {
-    if (dbcClass == null) {
+    Class clz = dbcClass;
+    if (clz == null) {
         cfLog.fatal("null result in getInstance in CacheFactory");
         throw new IllegalStateException(" CacheFactory not initialized. "
                               + "Did you forget to call CacheFactory.setInstance() ?");
     }
     DatabaseCache rval = null;
-    int numCtorArgs = pbo == null ? 1 : 2;
-    cfLog.debug(String.format("makingDBC, num Args: %d", numCtorArgs));
-    try {
-        Constructor ctorToUse = null;
-        Constructor[] ctors = dbcClass.getDeclaredConstructors();
+    if (clz == DatabaseCache.class) {
+        rval = new DatabaseCache(sleepTime);
+    } else {
+        rval = (DatabaseCache) makeByReflection(clz, pbo);
+    }
+    if (pbo != null) {
+        rval.setThreadName(pbo.getClass());
+        rval.valueClass = pbo.getClass();
+    }
+    rval.ensureRunning();
+    restoreSnapshot(rval);
+    return rval;
+}
+/**
+ * makes a cache of a custom class, using its (long) or (long, V) constructor.
+ * The constructor found is remembered, so the search is done once per class.
+ * @param clz the cache class
+ * @param arg optional instance of the class we will cache
+ * @return the new cache
+ * @throws IllegalStateException if there is no such constructor or it throws
+ */
+private static Object makeByReflection(Class clz, Object arg) {
+    int numCtorArgs = arg == null ? 1 : 2;
+    cfLog.debug(String.format("making %s, num Args: %d", clz.getSimpleName(), numCtorArgs));
+    String ctorKey = clz.getName() + "/" + numCtorArgs;
+    Constructor ctorToUse = knownCtors.get(ctorKey);
+    if (ctorToUse == null) {
+        Constructor[] ctors = clz.getDeclaredConstructors();
         for ( int i = 0; i < ctors.length && ctorToUse == null; i++) {
-            Constructor ctor = ctors[i];
-            Type[] types = ctor.getGenericParameterTypes();
-            switch (numCtorArgs) {
-                case 1:
-                    if ( types.length == numCtorArgs && types[0].toString().equals("long")) {
-                        ctorToUse = ctor;
-                    }
-                    break;
-                case 2:
-                    if (types.length == numCtorArgs && types[1].toString().equals("V")) {
-                        ctorToUse = ctor;
-                    }
-                    break;
-                default:
-                    String msg = "illegal number of arguments for constructor in CacheFactory";
-                    cfLog.fatal(msg);
-                    throw new IllegalStateException(msg);
+            Class[] types = ctors[i].getParameterTypes();
+            if (types.length == numCtorArgs && types[0] == long.class
+                        && (numCtorArgs == 1 || types[1].isInstance(arg))) {
+                ctorToUse = ctors[i];
             }
         }
-        rval = (DatabaseCache) (numCtorArgs == 1 ? ctorToUse.newInstance(sleepTime) : ctorToUse.newInstance(sleepTime, pbo) );
-        if (pbo != null) {
-            rval.setThreadName(pbo.getClass());
+        if (ctorToUse == null) {
+            String msg = "no (long" + (numCtorArgs == 2 ? ", V" : "") + ") constructor in " + clz.getName();
+            cfLog.fatal(msg);
+            throw new IllegalStateException(msg);
         }
-        rval.ensureRunning();
-        theTracker.add(rval);
+        knownCtors.putIfAbsent(ctorKey, ctorToUse);
+    }
+    try {
+        return numCtorArgs == 1 ? ctorToUse.newInstance(sleepTime) : ctorToUse.newInstance(sleepTime, arg);
     } catch (Exception ex) {
         cfLog.fatal("CF::unexpexted exception", ex);
+        throw new IllegalStateException("can not make a " + clz.getName(), ex);
     }
-    return rval;
 }
 /**
  * makes and gets an instance of the DatabaseCache
@@ -237,7 +404,7 @@ public static ImmutableList<String> getKnownCacheNames() {
     lock.readLock().lock();
     try {
         for (AbstractWSCache<?,?> wsc : theTracker.getKnownCaches()) {
-            names.add(wsc.myThread.getName());
+            names.add(wsc.getName());
         }
     } finally {
         lock.readLock().unlock();
@@ -245,7 +412,9 @@ public static ImmutableList<String> getKnownCacheNames() {
     return ImmutableList.copyOf(names);
 }
   /**
-   * public utility to close all cache threads
+   * public utility to stop sweeping all caches and close the shared sweeper threads.
+   * Writes the cache snapshots first, if they are on, then runs the tasks given to
+   * {@link #addCloseTask}, such as writing queued write-behind updates.
    */
 public static void closeAllThreads() {
     boolean gotLock = lock.writeLock().tryLock();
@@ -253,15 +422,38 @@ public static void closeAllThreads() {
         cfLog.fatal("can't get lock in CloseAllThreads");
     }
     try {
+        if (snapshotTask != null) {
+            snapshotTask.cancel(false);
+            snapshotTask = null;
+        }
         if ( theTracker.isEmpty()) return;
+        snapshotAll();
         for (AbstractWSCache<?,?> w : theTracker.getKnownCaches() ) {
-            w.myThread.interrupt();
+            w.shutdown();
         }
         theTracker.clear();
     } finally {
+        for (Runnable r : closeTasks) {
+            try {
+                r.run();
+            } catch (RuntimeException ex) {
+                cfLog.error("close task failed", ex);
+            }
+        }
+        InvalidationBus.shutdown();
+        CacheMetrics.shutdown();
+        SweepScheduler.shutdown();
         lock.writeLock().unlock();
     }
 }
+/**
+ * adds a task for {@link #closeAllThreads} to run, every time it is called, before the
+ * sweeper threads stop. Lets a user of the caches outside this package close with them.
+ * @param task the task
+ */
+public static void addCloseTask(Runnable task) {
+    closeTasks.add(Preconditions.checkNotNull(task));
+}
 public static void addToTracker(AbstractWSCache<?,?> arg) {
     Preconditions.checkNotNull(arg);
     lock.writeLock().lock();
@@ -0,0 +1,24 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.cache;
+
+/**
+ * The <code>CacheLoader</code> interface defines how a {@link DenningCache} computes a value it does not
+ * have. See {@link DenningCache#get(Object, CacheLoader)}.
+ *
+ * @param <K> generic type of key
+ * @param <V> generic type of value
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+public interface CacheLoader<K, V> {
+    /**
+     * computes or retrieves the value for the key
+     * @param key the key, never null
+     * @return the value, or <code>null</code> if there is none, in which case nothing is cached
+     * @throws Exception pass up any problems, they are wrapped in an ExecutionException for the callers
+     */
+    V load(K key) throws Exception;
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.cache;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.log4j.Logger;
+
+/**
+ * The <code>CacheMetrics</code> class publishes the statistics of every tracked cache.
+ * Once {@link #start} is called it takes a {@link CacheMetricsSnapshot} of each cache
+ * periodically, on the sweeper pool, and
+ * <ul>
+ * <li>registers a {@link CacheStatsMXBean} per cache under the <code>com.pfarrell.cache</code> domain,
+ * dropping the beans of caches that are gone
+ * <li>keeps the text exposition, see {@link #render()}, which {@link #startHttpServer} serves
+ * at <code>/metrics</code> on the loopback interface
+ * </ul>
+ * Readers always see the last snapshot, so a scrape never walks a cache.
+ * {@link CacheFactory#closeAllThreads} stops it all.
+ *
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+public final class CacheMetrics {
+    /** logger instance */
+private static final Logger cmLog = Logger.getLogger(CacheMetrics.class);
+/** JMX domain of the cache beans */
+public static final String DOMAIN = "com.pfarrell.cache";
+/** path the HTTP handler is served at */
+public static final String PATH = "/metrics";
+
+private static volatile ImmutableList<CacheMetricsSnapshot> latest = ImmutableList.of();
+private static final Map<String, SnapshotBean> beans = new HashMap<String, SnapshotBean>();
+private static ScheduledFuture<?> task;
+private static HttpServer server;
+private static final ReentrantLock lock = new ReentrantLock();
+
+private CacheMetrics() {
+}
+/**
+ * starts taking snapshots, replacing any earlier schedule
+ * @param interval time between snapshots
+ * @param unit unit of the interval
+ */
+public static void start(long interval, TimeUnit unit) {
+    Preconditions.checkArgument(interval > 0L);
+    Preconditions.checkNotNull(unit);
+    lock.lock();
+    try {
+        if (task != null) task.cancel(false);
+        task = SweepScheduler.getExecutor().scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        snapshot();
+                    } catch (RuntimeException ex) {
+                        cmLog.error("cache metrics snapshot failed", ex);
+                    }
+                }
+            }, 0L, interval, unit);
+    } finally {
+        lock.unlock();
+    }
+}
+/**
+ * takes a snapshot of every tracked cache now, and brings the MXBeans up to date
+ * @return the snapshots
+ */
+public static ImmutableList<CacheMetricsSnapshot> snapshot() {
+    List<CacheMetricsSnapshot> snaps = new ArrayList<CacheMetricsSnapshot>();
+    for (DenningCache<?, ?> cache : CacheFactory.getKnownCaches()) {
+        if (cache instanceof AbstractWSCache) {
+            snaps.add(new CacheMetricsSnapshot((AbstractWSCache<?, ?>) cache));
+        }
+    }
+    ImmutableList<CacheMetricsSnapshot> rval = ImmutableList.copyOf(snaps);
+    latest = rval;
+    lock.lock();
+    try {
+        updateBeans(rval);
+    } finally {
+        lock.unlock();
+    }
+    return rval;
+}
+/**
+ * @return the snapshots from the last run
+ */
+public static ImmutableList<CacheMetricsSnapshot> getLatest() {
+    return latest;
+}
+/** must hold the lock */
+private static void updateBeans(List<CacheMetricsSnapshot> snaps) {
+    MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+    Set<String> seen = new HashSet<String>();
+    for (CacheMetricsSnapshot snap : snaps) {
+        String name = snap.getName();
+        if (!seen.add(name)) continue;          // two caches, one name: first one wins
+        SnapshotBean bean = beans.get(name);
+        if (bean != null) {
+            bean.current = snap;
+            continue;
+        }
+        bean = new SnapshotBean(snap);
+        try {
+            mbs.registerMBean(bean, objectName(name));
+            beans.put(name, bean);
+        } catch (JMException ex) {
+            cmLog.warn("can not register MXBean for " + name, ex);
+        }
+    }
+    beans.keySet().retainAll(seen);
+    try {
+        for (ObjectName on : mbs.queryNames(new ObjectName(DOMAIN + ":type=Cache,*"), null)) {
+            if (!seen.contains(ObjectName.unquote(on.getKeyProperty("name")))) {
+                mbs.unregisterMBean(on);
+            }
+        }
+    } catch (JMException ex) {
+        cmLog.warn("can not drop stale cache MXBeans", ex);
+    }
+}
+/**
+ * gets the JMX name of a cache's bean
+ * @param cacheName name of the cache
+ * @return the object name
+ * @throws JMException if the name can not be made
+ */
+public static ObjectName objectName(String cacheName) throws JMException {
+    return new ObjectName(DOMAIN + ":type=Cache,name=" + ObjectName.quote(cacheName));
+}
+/**
+ * formats the last snapshots as lines of <code>metric{cache="name"} value</code>,
+ * in the text exposition format scrapers understand. Two caches with one name give one
+ * series, of the first one, as the MXBeans do.
+ * @return the text
+ */
+public static String render() {
+    List<CacheMetricsSnapshot> snaps = new ArrayList<CacheMetricsSnapshot>();
+    Set<String> seen = new HashSet<String>();
+    for (CacheMetricsSnapshot snap : latest) {
+        if (seen.add(snap.getName())) snaps.add(snap);
+    }
+    StringBuilder sb = new StringBuilder(256 + snaps.size() * 1024);
+    gauge(sb, snaps, "pdflib_cache_size", "entries in the cache", "gauge",
+            new Function<CacheMetricsSnapshot, Number>() {
+                public Number apply(CacheMetricsSnapshot snap) { return snap.getSize(); }
+            });
+    gauge(sb, snaps, "pdflib_cache_hits_total", "cache hits", "counter",
+            new Function<CacheMetricsSnapshot, Number>() {
+                public Number apply(CacheMetricsSnapshot snap) { return snap.getHits(); }
+            });
+    gauge(sb, snaps, "pdflib_cache_misses_total", "cache misses", "counter",
+            new Function<CacheMetricsSnapshot, Number>() {
+                public Number apply(CacheMetricsSnapshot snap) { return snap.getMisses(); }
+            });
+    gauge(sb, snaps, "pdflib_cache_hit_ratio", "ratio of hits to requests", "gauge",
+            new Function<CacheMetricsSnapshot, Number>() {
+                public Number apply(CacheMetricsSnapshot snap) { return snap.getHitRatio(); }
+            });
+    gauge(sb, snaps, "pdflib_cache_evictions_total", "entries evicted", "counter",
+            new Function<CacheMetricsSnapshot, Number>() {
+                public Number apply(CacheMetricsSnapshot snap) { return snap.getEvictions(); }
+            });
+    gauge(sb, snaps, "pdflib_cache_collected_total", "entries whose values were collected", "counter",
+            new Function<CacheMetricsSnapshot, Number>() {
+                public Number apply(CacheMetricsSnapshot snap) { return snap.getCollected(); }
+            });
+    gauge(sb, snaps, "pdflib_cache_loads_total", "loads on a miss", "counter",
+            new Function<CacheMetricsSnapshot, Number>() {
+                public Number apply(CacheMetricsSnapshot snap) { return snap.getLoads(); }
+            });
+    gauge(sb, snaps, "pdflib_cache_sweeps_total", "sweeps run", "counter",
+            new Function<CacheMetricsSnapshot, Number>() {
+                public Number apply(CacheMetricsSnapshot snap) { return snap.getSweeps(); }
+            });
+    gauge(sb, snaps, "pdflib_cache_sweep_mean_seconds", "mean sweep duration", "gauge",
+            new Function<CacheMetricsSnapshot, Number>() {
+                public Number apply(CacheMetricsSnapshot snap) { return seconds(snap.getSweepMeanNanos()); }
+            });
+    gauge(sb, snaps, "pdflib_cache_sweep_p99_seconds", "99th percentile sweep duration", "gauge",
+            new Function<CacheMetricsSnapshot, Number>() {
+                public Number apply(CacheMetricsSnapshot snap) { return seconds(snap.getSweepP99Nanos()); }
+            });
+    gauge(sb, snaps, "pdflib_cache_refresh_queries_total", "refresh queries run", "counter",
+            new Function<CacheMetricsSnapshot, Number>() {
+                public Number apply(CacheMetricsSnapshot snap) { return snap.getRefreshQueries(); }
+            });
+    gauge(sb, snaps, "pdflib_cache_refresh_mean_seconds", "mean refresh query time", "gauge",
+            new Function<CacheMetricsSnapshot, Number>() {
+                public Number apply(CacheMetricsSnapshot snap) { return seconds(snap.getRefreshMeanNanos()); }
+            });
+    gauge(sb, snaps, "pdflib_cache_refresh_p99_seconds", "99th percentile refresh query time", "gauge",
+            new Function<CacheMetricsSnapshot, Number>() {
+                public Number apply(CacheMetricsSnapshot snap) { return seconds(snap.getRefreshP99Nanos()); }
+            });
+    return sb.toString();
+}
+private static void gauge(StringBuilder sb, List<CacheMetricsSnapshot> snaps, String metric,
+                String help, String type, Function<CacheMetricsSnapshot, Number> value) {
+    sb.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+    for (CacheMetricsSnapshot snap : snaps) {
+        sb.append(metric).append("{cache=\"").append(escape(snap.getName())).append("\"} ");
+        sb.append(value.apply(snap)).append('\n');
+    }
+}
+private static double seconds(long nanos) {
+    return nanos / 1.0e9;
+}
+private static String escape(String arg) {
+    return arg.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+}
+/**
+ * serves {@link #render()} at {@link #PATH} on the loopback interface
+ * @param port port to listen on, zero for any free port
+ * @return the port listened on
+ * @throws IOException if the port can not be bound
+ */
+public static int startHttpServer(int port) throws IOException {
+    lock.lock();
+    try {
+        if (server != null) server.stop(0);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext(PATH, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream os = exchange.getResponseBody();
+                try {
+                    os.write(body);
+                } finally {
+                    os.close();
+                }
+            }
+        });
+        server.start();
+        return server.getAddress().getPort();
+    } finally {
+        lock.unlock();
+    }
+}
+/**
+ * stops the snapshots and the HTTP server, and unregisters the beans
+ */
+public static void shutdown() {
+    lock.lock();
+    try {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        latest = ImmutableList.of();
+        updateBeans(latest);
+    } finally {
+        lock.unlock();
+    }
+}
+
+/**
+ * the registered bean of one cache, pointing at its latest snapshot
+ */
+private static class SnapshotBean implements CacheStatsMXBean {
+    volatile CacheMetricsSnapshot current;
+    SnapshotBean(CacheMetricsSnapshot snap) {
+        current = snap;
+    }
+    public String getName() { return current.getName(); }
+    public long getSnapshotTime() { return current.getSnapshotTime(); }
+    public long getSize() { return current.getSize(); }
+    public long getHits() { return current.getHits(); }
+    public long getMisses() { return current.getMisses(); }
+    public double getHitRatio() { return current.getHitRatio(); }
+    public long getEvictions() { return current.getEvictions(); }
+    public long getCollected() { return current.getCollected(); }
+    public long getLoads() { return current.getLoads(); }
+    public long getSweeps() { return current.getSweeps(); }
+    public long getSweepMeanNanos() { return current.getSweepMeanNanos(); }
+    public long getSweepP99Nanos() { return current.getSweepP99Nanos(); }
+    public long getSweepMaxNanos() { return current.getSweepMaxNanos(); }
+    public long getRefreshQueries() { return current.getRefreshQueries(); }
+    public long getRefreshMeanNanos() { return current.getRefreshMeanNanos(); }
+    public long getRefreshP99Nanos() { return current.getRefreshP99Nanos(); }
+}
+}
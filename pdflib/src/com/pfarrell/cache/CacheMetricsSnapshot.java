@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.cache;
+
+/**
+ * The <code>CacheMetricsSnapshot</code> class holds the numbers of one cache at one moment,
+ * taken by {@link CacheMetrics}. It is immutable, and is what the {@link CacheStatsMXBean}
+ * and the text exposition report.
+ *
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+public final class CacheMetricsSnapshot implements CacheStatsMXBean {
+private final String name;
+private final long snapshotTime;
+private final long size;
+private final long hits;
+private final long misses;
+private final double hitRatio;
+private final long evictions;
+private final long collected;
+private final long loads;
+private final long sweeps;
+private final long sweepMeanNanos;
+private final long sweepP99Nanos;
+private final long sweepMaxNanos;
+private final long refreshQueries;
+private final long refreshMeanNanos;
+private final long refreshP99Nanos;
+
+/**
+ * takes a snapshot of the argument cache
+ * @param cache the cache
+ */
+CacheMetricsSnapshot(AbstractWSCache<?, ?> cache) {
+    CacheStatistics stats = cache.getCacheStatistics();
+    name = cache.getName();
+    snapshotTime = System.currentTimeMillis();
+    size = cache.size();
+    hits = stats.getHits();
+    misses = stats.getMisses();
+    hitRatio = stats.getHitRatio();
+    evictions = stats.getEvictions();
+    collected = stats.getCollected();
+    loads = stats.getLoads();
+    sweeps = stats.getSweeps();
+    LatencyHistogram sweep = stats.getSweepLatency();
+    sweepMeanNanos = sweep.getMeanNanos();
+    sweepP99Nanos = sweep.getPercentileNanos(99.0);
+    sweepMaxNanos = sweep.getMaxNanos();
+    LatencyHistogram refresh = stats.getRefreshLatency();
+    refreshQueries = refresh.getCount();
+    refreshMeanNanos = refresh.getMeanNanos();
+    refreshP99Nanos = refresh.getPercentileNanos(99.0);
+}
+public String getName() {
+    return name;
+}
+public long getSnapshotTime() {
+    return snapshotTime;
+}
+public long getSize() {
+    return size;
+}
+public long getHits() {
+    return hits;
+}
+public long getMisses() {
+    return misses;
+}
+public double getHitRatio() {
+    return hitRatio;
+}
+public long getEvictions() {
+    return evictions;
+}
+public long getCollected() {
+    return collected;
+}
+public long getLoads() {
+    return loads;
+}
+public long getSweeps() {
+    return sweeps;
+}
+public long getSweepMeanNanos() {
+    return sweepMeanNanos;
+}
+public long getSweepP99Nanos() {
+    return sweepP99Nanos;
+}
+public long getSweepMaxNanos() {
+    return sweepMaxNanos;
+}
+public long getRefreshQueries() {
+    return refreshQueries;
+}
+public long getRefreshMeanNanos() {
+    return refreshMeanNanos;
+}
+public long getRefreshP99Nanos() {
+    return refreshP99Nanos;
+}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The <code>CacheReadBenchmark</code> class is a simple, stand alone multi-threaded benchmark
+ * of the read path of the {@link DenningCache} implementations. For each implementation it runs
+ * 1, 2, 4 ... reader threads, ending with one trial at the number of cores, against a populated cache while a separate thread sweeps
+ * every {@link #SWEEP_PAUSE_MILLIS} milliseconds, and reports the read throughput. The cache is
+ * filled before each trial, never during one, so the timed reads only compete with the sweeps;
+ * the entries left at the end of a trial show how much the sweeper dropped.
+ * <p>
+ * Run it with <code>java com.pfarrell.cache.CacheReadBenchmark [entries] [seconds]</code>
+ *
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+public class CacheReadBenchmark {
+/** default number of entries in the cache */
+static final int DEFAULT_ENTRIES = 100000;
+/** default number of seconds to run each trial */
+static final int DEFAULT_SECONDS = 3;
+/** pause between sweeps, long enough for the readers to touch every entry between two */
+static final long SWEEP_PAUSE_MILLIS = 100L;
+
+private final int numEntries;
+private final long runMillis;
+
+/**
+ * constructor
+ * @param entries number of entries to put in the cache
+ * @param seconds number of seconds to run each trial
+ */
+CacheReadBenchmark(int entries, int seconds) {
+    numEntries = entries;
+    runMillis = TimeUnit.SECONDS.toMillis(seconds);
+}
+/**
+ * runs one trial, the sweeper only sweeps
+ * @param cache the cache to read, must already be populated
+ * @param numThreads number of reader threads
+ * @return reads per second, summed over all threads
+ * @throws InterruptedException if we get interrupted while waiting for the readers
+ */
+long runTrial(final AbstractWSCache<Long, Long> cache, int numThreads) throws InterruptedException {
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final CountDownLatch startGate = new CountDownLatch(1);
+    final long[] counts = new long[numThreads];
+    List<Thread> readers = new ArrayList<Thread>();
+    for (int t = 0; t < numThreads; t++) {
+        final int slot = t;
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                long ops = 0;
+                long key = slot;
+                try {
+                    startGate.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                while (running.get()) {
+                    for (int i = 0; i < 1000; i++) {
+                        cache.get(Long.valueOf(key % numEntries));
+                        key += 7919;
+                    }
+                    ops += 1000;
+                }
+                counts[slot] = ops;
+            }
+        }, "bench-reader-" + t);
+        readers.add(reader);
+        reader.start();
+    }
+    Thread sweeper = new Thread(new Runnable() {
+        public void run() {
+            try {
+                startGate.await();
+                while (running.get()) {
+                    cache.processPass();
+                    Thread.sleep(SWEEP_PAUSE_MILLIS);
+                }
+            } catch (InterruptedException ex) {
+                // done
+            }
+        }
+    }, "bench-sweeper");
+    sweeper.start();
+    startGate.countDown();
+    Thread.sleep(runMillis);
+    running.set(false);
+    for (Thread reader : readers) {
+        reader.join();
+    }
+    sweeper.join();
+    long total = 0;
+    for (long c : counts) {
+        total += c;
+    }
+    return total * 1000 / runMillis;
+}
+/**
+ * puts back anything the sweeper took out, so every trial starts with a full cache
+ * @param cache the cache to fill
+ */
+void refill(AbstractWSCache<Long, Long> cache) {
+    for (long i = 0; i < numEntries; i++) {
+        Long key = Long.valueOf(i);
+        if (!cache.containsKey(key)) {
+            cache.put(key, key);
+        }
+    }
+}
+/**
+ * the reader thread counts to try: powers of two below the number of cores, then the cores themselves
+ * @param cores number of available processors
+ * @return thread counts in increasing order, the last one is always cores
+ */
+static List<Integer> threadCounts(int cores) {
+    List<Integer> rval = new ArrayList<Integer>();
+    for (int threads = 1; threads < cores; threads *= 2) {
+        rval.add(Integer.valueOf(threads));
+    }
+    rval.add(Integer.valueOf(cores));
+    return rval;
+}
+/**
+ * runs all trials for one cache and prints the results
+ * @param cache the cache to measure
+ * @throws InterruptedException if we get interrupted while waiting for the readers
+ */
+void measure(AbstractWSCache<Long, Long> cache) throws InterruptedException {
+    int cores = Runtime.getRuntime().availableProcessors();
+    System.out.println(cache.getClass().getSimpleName() + " with " + numEntries + " entries");
+    long base = 0;
+    for (int threads : threadCounts(cores)) {
+        refill(cache);
+        long opsPerSec = runTrial(cache, threads);
+        if (base == 0) base = opsPerSec;
+        System.out.println(String.format("  %3d threads: %,15d reads/sec  scaling %.2fx  %,d entries left",
+                    threads, opsPerSec, (double) opsPerSec / base, cache.size()));
+    }
+    cache.shutdown();
+}
+/**
+ * main entry point
+ * @param args optional number of entries and number of seconds per trial
+ * @throws InterruptedException if we get interrupted
+ */
+public static void main(String[] args) throws InterruptedException {
+    int entries = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ENTRIES;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SECONDS;
+    CacheReadBenchmark bench = new CacheReadBenchmark(entries, seconds);
+    long nap = TimeUnit.HOURS.toMillis(1);
+    bench.measure(new WorkingSetCache<Long, Long>(nap));
+    bench.measure(new ConcurrentWorkingSetCache<Long, Long>(nap));
+    CacheFactory.closeAllThreads();
+}
+}
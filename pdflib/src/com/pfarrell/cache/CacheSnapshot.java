@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.cache;
+
+import com.google.common.base.Preconditions;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import org.apache.log4j.Logger;
+
+/**
+ * The <code>CacheSnapshot</code> class writes the working set of a cache to a local file, and
+ * reads it back into a new cache, so a restarted process does not begin with every cache empty
+ * and every request going to the database.
+ * <p>
+ * A snapshot holds the keys of the cache, the ones used since the last sweep first, and
+ * optionally the serialized values. A {@link DatabaseCache} is always restored from its keys,
+ * it fetches the rows with {@link DatabaseCache#getAll(java.util.Collection)}, a few large
+ * selects rather than one per key, so it never starts with rows from before the restart.
+ * Other caches can only be restored from values, and only if their value class is known.
+ * <p>
+ * Only caches named with {@link AbstractWSCache#setName} have snapshots, the generated names
+ * are neither unique nor stable. The files are named after the cache, see {@link #fileFor},
+ * and are replaced atomically. The header names the key and value classes, a snapshot whose
+ * classes do not match the cache is not restored.
+ *
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+final class CacheSnapshot {
+    /** logger instance */
+private static final Logger csLog = Logger.getLogger(CacheSnapshot.class);
+/** first int of every snapshot file */
+static final int MAGIC = 0x57534332;
+/** suffix of snapshot files */
+static final String SUFFIX = ".snap";
+
+private CacheSnapshot() {
+}
+/**
+ * gets the snapshot file for a cache
+ * @param dir directory holding the snapshots
+ * @param cache the cache
+ * @return the file, which may not exist
+ */
+static File fileFor(File dir, AbstractWSCache<?, ?> cache) {
+    return new File(dir, cache.getName().replaceAll("[^A-Za-z0-9_.-]", "_") + SUFFIX);
+}
+/**
+ * writes the keys, and optionally the values, of the cache to its snapshot file
+ * @param dir directory holding the snapshots
+ * @param cache the cache
+ * @param withValues true to store the serialized values too
+ * @param maxKeys most keys to store
+ * @return number of keys written
+ * @throws IOException pass up any file problems
+ */
+static <K, V> int save(File dir, AbstractWSCache<K, V> cache, boolean withValues, int maxKeys) throws IOException {
+    Preconditions.checkNotNull(dir);
+    Preconditions.checkNotNull(cache);
+    Preconditions.checkArgument(cache.hasExplicitName(), "only caches named with setName have snapshots");
+    Class<?> valueType = cache.getValueType();
+    boolean values = withValues && valueType != null && !(cache instanceof DatabaseCache);
+    Class<?> keyType = null;
+    List<K> hot = new ArrayList<K>();
+    List<K> cold = new ArrayList<K>();
+    for (Map<K, AbstractWSCache.WorkingSetObject<V>> map : cache.allMaps()) {
+        for (Map.Entry<K, AbstractWSCache.WorkingSetObject<V>> entry : map.entrySet()) {
+            if (!(entry.getKey() instanceof Serializable)) continue;
+            if (keyType == null) keyType = entry.getKey().getClass();
+            if (entry.getKey().getClass() != keyType) continue;
+            if (entry.getValue().usedThisCycle) {
+                hot.add(entry.getKey());
+            } else {
+                cold.add(entry.getKey());
+            }
+        }
+    }
+    hot.addAll(cold);
+    List<K> keys = hot.size() > maxKeys ? hot.subList(0, maxKeys) : hot;
+    File target = fileFor(dir, cache);
+    File temp = new File(dir, target.getName() + ".tmp");
+    int written = 0;
+    ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+        oos.writeInt(MAGIC);
+        oos.writeUTF(keyType == null ? "" : keyType.getName());
+        oos.writeUTF(valueType == null ? "" : valueType.getName());
+        oos.writeBoolean(values);
+        for (K key : keys) {
+            byte[] data = null;
+            if (values) {
+                V value = cache.peek(key);
+                if (!valueType.isInstance(value)) continue;
+                data = OffHeapStore.serialize(value);
+                if (data == null) continue;
+            }
+            oos.writeBoolean(true);
+            oos.writeObject(key);
+            if (values) {
+                oos.writeInt(data.length);
+                oos.write(data);
+            }
+            written++;
+        }
+        oos.writeBoolean(false);
+    } finally {
+        oos.close();
+    }
+    Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    if (csLog.isDebugEnabled()) csLog.debug(String.format("%s snapshot of %d keys", cache.getName(), written));
+    return written;
+}
+/**
+ * reads the snapshot file of the cache back into it. Values in the file are put directly,
+ * except into a {@link DatabaseCache}, which loads the rows of the keys instead. A key only
+ * snapshot is only usable by a DatabaseCache.
+ * @param dir directory holding the snapshots
+ * @param cache the cache
+ * @return number of entries restored
+ * @throws IOException pass up any file problems
+ */
+@SuppressWarnings("unchecked")
+static <K, V> int restore(File dir, AbstractWSCache<K, V> cache) throws IOException {
+    Preconditions.checkNotNull(dir);
+    Preconditions.checkNotNull(cache);
+    Preconditions.checkArgument(cache.hasExplicitName(), "only caches named with setName have snapshots");
+    File source = fileFor(dir, cache);
+    if (!source.canRead()) return 0;
+    boolean loadsRows = cache instanceof DatabaseCache;
+    Class<?> valueType = cache.getValueType();
+    List<K> keys = new ArrayList<K>();
+    int rval = 0;
+    ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(source)));
+    try {
+        if (ois.readInt() != MAGIC) {
+            csLog.warn("not a cache snapshot: " + source);
+            return 0;
+        }
+        String keyTypeName = ois.readUTF();
+        String valueTypeName = ois.readUTF();
+        boolean withValues = ois.readBoolean();
+        if (valueType == null || !valueType.getName().equals(valueTypeName)) {
+            csLog.warn(String.format("%s snapshot holds %s, not %s, ignored", cache.getName(), valueTypeName,
+                            valueType == null ? "an unknown class" : valueType.getName()));
+            return 0;
+        }
+        if (!withValues && !loadsRows) {
+            csLog.info(cache.getName() + " has a key only snapshot but can not load, ignored");
+            return 0;
+        }
+        while (ois.readBoolean()) {
+            Object key = ois.readObject();
+            byte[] data = null;
+            if (withValues) {
+                data = new byte[ois.readInt()];
+                ois.readFully(data);
+            }
+            if (!key.getClass().getName().equals(keyTypeName)) continue;
+            if (loadsRows) {
+                keys.add((K) key);
+            } else if (data != null) {
+                Object value = OffHeapStore.deserialize(data);
+                if (valueType.isInstance(value) && cache.peek((K) key) == null) {
+                    cache.put((K) key, (V) value);
+                    rval++;
+                }
+            }
+        }
+    } catch (ClassNotFoundException ex) {
+        throw new IOException("snapshot names a missing class", ex);
+    } finally {
+        ois.close();
+    }
+    if (!keys.isEmpty()) {
+        try {
+            rval += loadRows((DatabaseCache<?, ?>) cache, keys);
+        } catch (ExecutionException ex) {
+            throw new IOException("warm start load failed for " + cache.getName(), ex.getCause());
+        }
+    }
+    if (csLog.isDebugEnabled()) csLog.debug(String.format("%s restored %d entries", cache.getName(), rval));
+    return rval;
+}
+/**
+ * selects the rows of the keys into the cache, the keys were checked against the snapshot header
+ */
+@SuppressWarnings("unchecked")
+private static <K extends Comparable<? super K>> int loadRows(DatabaseCache<K, ?> cache, List<?> keys)
+                throws ExecutionException {
+    return cache.getAll((List<K>) keys).size();
+}
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.cache;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The <code>CacheStatistics</code> class holds the counters and latency histograms for one
+ * {@link DenningCache}. All counters are striped {@link LongAdder}s, so they may be bumped by any
+ * number of threads, with or without the cache lock, without losing updates and without
+ * contending on a single cache line.
+ * <p>
+ * Timing the get/put/sweep/load calls costs two <code>System.nanoTime()</code> calls each, it can be
+ * turned off with {@link #setRecordTimings(boolean)}, in which case the histograms stay empty.
+ *
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+public class CacheStatistics {
+/** number of values found (hits) */
+private final LongAdder hits = new LongAdder();
+/** number of misses */
+private final LongAdder misses = new LongAdder();
+/** count of terribly slow searches performed */
+private final LongAdder slowSearches = new LongAdder();
+/** number of sweep cycles we have done */
+private final LongAdder sweeps = new LongAdder();
+/** number of entries removed by the sweeper or size bound */
+private final LongAdder evictions = new LongAdder();
+/** number of entries dropped because the garbage collector cleared their values */
+private final LongAdder collected = new LongAdder();
+/** number of loads run for misses */
+private final LongAdder loads = new LongAdder();
+/** number of loads that threw */
+private final LongAdder loadFailures = new LongAdder();
+/** number of misses that waited on a load already under way */
+private final LongAdder coalescedLoads = new LongAdder();
+/** number of background refresh-ahead reloads started */
+private final LongAdder refreshes = new LongAdder();
+/** elapsed time of get() calls */
+private final LatencyHistogram getLatency = new LatencyHistogram("getLatency");
+/** elapsed time of put() calls */
+private final LatencyHistogram putLatency = new LatencyHistogram("putLatency");
+/** elapsed time of sweeps */
+private final LatencyHistogram sweepLatency = new LatencyHistogram("sweepLatency");
+/** elapsed time of loads */
+private final LatencyHistogram loadLatency = new LatencyHistogram("loadLatency");
+/** elapsed time of the database queries of periodic refreshes */
+private final LatencyHistogram refreshLatency = new LatencyHistogram("refreshLatency");
+/** flag to time calls */
+private volatile boolean recordTimings = true;
+
+/**
+ * turn timing of get/put/sweep on or off
+ * @param arg true to record timings
+ */
+public void setRecordTimings(boolean arg) {
+    recordTimings = arg;
+}
+/**
+ * @return true if timings are being recorded
+ */
+public boolean isRecordTimings() {
+    return recordTimings;
+}
+/**
+ * gets a start time for a timed call
+ * @return current nano time, or zero if timings are off
+ */
+long startTimer() {
+    return recordTimings ? System.nanoTime() : 0L;
+}
+/** record a hit */
+void recordHit() {
+    hits.increment();
+}
+/** record a miss */
+void recordMiss() {
+    misses.increment();
+}
+/** record a slow search */
+void recordSlowSearch() {
+    slowSearches.increment();
+}
+/** record a sweep */
+void recordSweep() {
+    sweeps.increment();
+}
+/** record an eviction */
+void recordEviction() {
+    evictions.increment();
+}
+/** record an entry whose value was collected */
+void recordCollected() {
+    collected.increment();
+}
+/** record a load that failed */
+void recordLoadFailure() {
+    loadFailures.increment();
+}
+/** record a miss that shared a load already under way */
+void recordCoalescedLoad() {
+    coalescedLoads.increment();
+}
+/** record a background refresh */
+void recordRefresh() {
+    refreshes.increment();
+}
+/**
+ * records a load and its elapsed time
+ * @param start value from {@link #startTimer()}
+ */
+void recordLoadTime(long start) {
+    loads.increment();
+    if (start != 0L) loadLatency.record(System.nanoTime() - start);
+}
+/**
+ * records the elapsed time of a refresh query
+ * @param start value from {@link #startTimer()}
+ */
+void recordRefreshTime(long start) {
+    if (start != 0L) refreshLatency.record(System.nanoTime() - start);
+}
+/**
+ * records the elapsed time of a get
+ * @param start value from {@link #startTimer()}
+ */
+void recordGet(long start) {
+    if (start != 0L) getLatency.record(System.nanoTime() - start);
+}
+/**
+ * records the elapsed time of a put
+ * @param start value from {@link #startTimer()}
+ */
+void recordPut(long start) {
+    if (start != 0L) putLatency.record(System.nanoTime() - start);
+}
+/**
+ * records the elapsed time of a sweep
+ * @param start value from {@link #startTimer()}
+ */
+void recordSweepTime(long start) {
+    if (start != 0L) sweepLatency.record(System.nanoTime() - start);
+}
+/**
+ * @return number of hits
+ */
+public long getHits() {
+    return hits.sum();
+}
+/**
+ * @return number of misses
+ */
+public long getMisses() {
+    return misses.sum();
+}
+/**
+ * @return number of slow searches
+ */
+public long getSlowSearches() {
+    return slowSearches.sum();
+}
+/**
+ * @return number of sweeps
+ */
+public long getSweeps() {
+    return sweeps.sum();
+}
+/**
+ * @return number of evictions
+ */
+public long getEvictions() {
+    return evictions.sum();
+}
+/**
+ * @return number of entries dropped because their values were collected
+ */
+public long getCollected() {
+    return collected.sum();
+}
+/**
+ * @return number of loads run
+ */
+public long getLoads() {
+    return loads.sum();
+}
+/**
+ * @return number of loads that threw
+ */
+public long getLoadFailures() {
+    return loadFailures.sum();
+}
+/**
+ * @return number of misses that waited on another caller's load
+ */
+public long getCoalescedLoads() {
+    return coalescedLoads.sum();
+}
+/**
+ * @return number of background refresh-ahead reloads started
+ */
+public long getRefreshes() {
+    return refreshes.sum();
+}
+/**
+ * @return ratio of hits to requests, zero if no requests
+ */
+public double getHitRatio() {
+    long h = hits.sum();
+    long total = h + misses.sum();
+    return total == 0 ? 0.0 : (double) h / total;
+}
+/**
+ * @return histogram of get times
+ */
+public LatencyHistogram getGetLatency() {
+    return getLatency;
+}
+/**
+ * @return histogram of put times
+ */
+public LatencyHistogram getPutLatency() {
+    return putLatency;
+}
+/**
+ * @return histogram of sweep times
+ */
+public LatencyHistogram getSweepLatency() {
+    return sweepLatency;
+}
+/**
+ * @return histogram of load times
+ */
+public LatencyHistogram getLoadLatency() {
+    return loadLatency;
+}
+/**
+ * @return histogram of refresh query times
+ */
+public LatencyHistogram getRefreshLatency() {
+    return refreshLatency;
+}
+/**
+ * adds all counters and histogram summaries to the argument map
+ * @param map the map to fill
+ */
+public void addTo(Map<String, Object> map) {
+    map.put("sweeps", Long.valueOf(getSweeps()));
+    map.put("hits", Long.valueOf(getHits()));
+    map.put("misses", Long.valueOf(getMisses()));
+    map.put("slowsrch", Long.valueOf(getSlowSearches()));
+    map.put("evictions", Long.valueOf(getEvictions()));
+    map.put("collected", Long.valueOf(getCollected()));
+    map.put("loads", Long.valueOf(getLoads()));
+    map.put("loadFailures", Long.valueOf(getLoadFailures()));
+    map.put("coalescedLoads", Long.valueOf(getCoalescedLoads()));
+    map.put("refreshes", Long.valueOf(getRefreshes()));
+    map.put("hitRatio", Double.valueOf(getHitRatio()));
+    getLatency.addTo(map);
+    putLatency.addTo(map);
+    sweepLatency.addTo(map);
+    loadLatency.addTo(map);
+    refreshLatency.addTo(map);
+}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.cache;
+
+/**
+ * The <code>CacheStatsMXBean</code> interface is the JMX view of one tracked cache, registered by
+ * {@link CacheMetrics} as <code>com.pfarrell.cache:type=Cache,name=...</code>.
+ * The values are from the most recent periodic snapshot, not live.
+ *
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+public interface CacheStatsMXBean {
+    /** @return name of the cache */
+    String getName();
+    /** @return time of the snapshot, in milliseconds since the epoch */
+    long getSnapshotTime();
+    /** @return number of entries */
+    long getSize();
+    /** @return number of hits */
+    long getHits();
+    /** @return number of misses */
+    long getMisses();
+    /** @return ratio of hits to requests */
+    double getHitRatio();
+    /** @return number of entries evicted */
+    long getEvictions();
+    /** @return number of entries whose values were collected */
+    long getCollected();
+    /** @return number of loads */
+    long getLoads();
+    /** @return number of sweeps */
+    long getSweeps();
+    /** @return mean sweep duration in nanoseconds */
+    long getSweepMeanNanos();
+    /** @return 99th percentile sweep duration in nanoseconds */
+    long getSweepP99Nanos();
+    /** @return longest sweep in nanoseconds */
+    long getSweepMaxNanos();
+    /** @return number of refresh queries */
+    long getRefreshQueries();
+    /** @return mean refresh query time in nanoseconds */
+    long getRefreshMeanNanos();
+    /** @return 99th percentile refresh query time in nanoseconds */
+    long getRefreshP99Nanos();
+}
@@ -63,7 +63,7 @@ void clear() {
     }
     try {
         for (AbstractWSCache<?,?> w : getKnownCaches() ) {
-            w.myThread.interrupt();
+            w.shutdown();
         }
         knownCaches.clear();
     } finally {
@@ -71,23 +71,10 @@ void clear() {
     }
 }
   /**
-   * public utility to close all cache threads
+   * public utility to close all cache threads, same as {@link CacheFactory#closeAllThreads}
    */
 public void closeAllThreads() {
-    boolean gotLock = lock.writeLock().tryLock();
-    if ( ! gotLock) {
-        ctLog.fatal("can't get lock in CloseAllThreads");
-    }
-    try {
-        if ( this.isEmpty()) return;
-        for (AbstractWSCache<?,?> w : getKnownCaches() ) {
-            w.myThread.interrupt();
-        }
-        clear();
-    } finally {
-        lock.writeLock().unlock();
-    }
-
+    CacheFactory.closeAllThreads();
 }
 
 }
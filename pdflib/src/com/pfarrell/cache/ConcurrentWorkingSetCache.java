@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The <code>ConcurrentWorkingSetCache</code> class is a {@link WorkingSetCache} that does not
+ * take the {@link AbstractWSCache#lock ReentrantReadWriteLock} on the hot path.
+ * <p>
+ * The underlying <code>ConcurrentHashMap</code> is already thread safe, so <code>get</code>,
+ * <code>put</code> and <code>remove</code> go straight to it. The <code>usedThisCycle</code> mark is
+ * a plain write, and is only written when it is not already set, so readers of a hot entry do not
+ * keep dirtying its cache line. A lost mark just means the entry may be swept one cycle early,
+ * which is the same as a cache miss.
+ * <p>
+ * The sweep is incremental: it walks the weakly consistent iterator of the map, yields every
+ * {@link #SWEEP_BATCH} entries, and only removes an entry if it is still mapped to the
+ * object that was examined, so a concurrent <code>put</code> is never lost.
+ * <p>
+ * Select it with <code>CacheFactory.setWscClass(ConcurrentWorkingSetCache.class)</code>.
+ *
+ * @param <K> generic type of key
+ * @param <V> generic type of value
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+public class ConcurrentWorkingSetCache<K, V> extends WorkingSetCache<K, V> {
+/** number of entries examined by the sweeper before it yields */
+public static final int SWEEP_BATCH = 256;
+
+/**
+ * default constructor, pick a decent time for the flush cycle
+ */
+    public ConcurrentWorkingSetCache() {
+        this(TimeUnit.MINUTES.toMillis(10), null);
+    }
+/**
+ * constructor that takes an instance of the type V for naming. A default value for the nap time is generated.
+ * @param instance an instance of type V
+ */
+    public ConcurrentWorkingSetCache(V instance) {
+        this(TimeUnit.MINUTES.toMillis(10), instance);
+    }
+/**
+ * constructor, accept time for aging cycle
+ * @param nap time to sleep between cycles (in milliseconds)
+ */
+    public ConcurrentWorkingSetCache(long nap) {
+        this(nap, null);
+    }
+/**
+ * constructor, accept time for aging cycle and instance for name
+ * @param nap time to sleep between cycles (in milliseconds)
+ * @param instance an instance of type V
+ */
+    public ConcurrentWorkingSetCache(long nap, V instance) {
+        super(nap, instance);
+    }
+/**
+ * sweep thru the cache a batch at a time, deleting any unmarked items and clearing all marks.
+ * Never blocks readers or writers.
+ */
+    @Override
+protected void processPass() {
+    if (awscLog.isTraceEnabled()) {
+        awscLog.trace("Doing lock free pass for " + myName);
+    }
+    drainCollected();
+    int examined = 0;
+    Iterator<Map.Entry<K, WorkingSetObject<V>>> it = theCache.entrySet().iterator();
+    while (it.hasNext()) {
+        Map.Entry<K, WorkingSetObject<V>> entry = it.next();
+        WorkingSetObject<V> wso = entry.getValue();
+        if (wso.get() == null) {
+            removeCollected(entry.getKey(), wso);
+        } else if (wso.usedThisCycle) {
+            wso.usedThisCycle = false;
+        } else {
+            long generation = spillGeneration(entry.getKey());
+            if (theCache.remove(entry.getKey(), wso)) {
+                entryRemoved(entry.getKey(), wso);
+                entryEvicted(entry.getKey(), wso, generation);
+            }
+        }
+        if (++examined % SWEEP_BATCH == 0) {
+            Thread.yield();
+        }
+    }
+}
+    /**
+     * {@inheritDoc}
+     * Does not take the cache lock.
+     */
+    @Override
+public V put(K key, V value) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkNotNull(value);
+    long start = stats.startTimer();
+    drainCollected();
+    if (breadcrumb == null) breadcrumb = value.getClass().getSimpleName();
+    WorkingSetObject<V> wso = newEntry(key, value);
+    WorkingSetObject<V> rval = theCache.put(key, wso);
+    if (rval != null) entryRemoved(key, rval);
+    entryAdded(key, wso);
+    OffHeapStore<K> store = offHeap;
+    if (store != null) store.remove(key);
+    stats.recordPut(start);
+    return (rval != null) ? rval.get() : null;
+}
+    /**
+     * {@inheritDoc}
+     * Does not take the cache lock.
+     */
+    @Override
+public V remove(K key) {
+    Preconditions.checkNotNull(key);
+    drainCollected();
+    WorkingSetObject<V> wso = theCache.remove(key);
+    OffHeapStore<K> store = offHeap;
+    if (store != null) store.remove(key);
+    if (wso == null) {
+        stats.recordMiss();
+    } else {
+        stats.recordHit();
+        entryRemoved(key, wso);
+    }
+    return wso == null ? null : wso.get();
+}
+    /**
+     * {@inheritDoc}
+     * Does not take the cache lock.
+     */
+    @Override
+public V get(K key) {
+    Preconditions.checkNotNull(key);
+    long start = stats.startTimer();
+    WorkingSetObject<V> wso = theCache.get(key);
+    V rval = wso == null ? null : wso.get();
+    if (rval == null) {
+        if (wso != null) removeCollected(key, wso);
+        rval = promote(key);
+        if (rval == null) {
+            stats.recordMiss();
+        } else {
+            stats.recordHit();
+        }
+        stats.recordGet(start);
+        return rval;
+    }
+    stats.recordHit();
+    if (!wso.usedThisCycle) {
+        wso.usedThisCycle = true;
+    }
+    stats.recordGet(start);
+    return rval;
+}
+    /**
+     * {@inheritDoc}
+     * Does not take the cache lock.
+     */
+    @Override
+public boolean containsKey(K key) {
+    Preconditions.checkNotNull(key);
+    return theCache.containsKey(key);
+}
+    /**
+     * {@inheritDoc}
+     * Does not take the cache lock, the result reflects a weakly consistent view of the cache.
+     */
+    @Override
+public boolean contains(V value) {
+    Preconditions.checkNotNull(value);
+    if (valueIndex != null) {
+        return indexedLookup(value) != null;
+    }
+    stats.recordSlowSearch();
+    for (WorkingSetObject<V> wso : theCache.values()) {
+        V obj = wso.get();
+        if (obj != null && obj.equals(value)) {
+            return true;
+        }
+    }
+    return false;
+}
+    /**
+     * {@inheritDoc}
+     * Does not take the cache lock, the result reflects a weakly consistent view of the cache.
+     */
+    @Override
+public K getKeyForValue(V value) {
+    Preconditions.checkNotNull(value);
+    if (valueIndex != null) {
+        return indexedLookup(value);
+    }
+    stats.recordSlowSearch();
+    for (Map.Entry<K, WorkingSetObject<V>> entry : theCache.entrySet()) {
+        V obj = entry.getValue().get();
+        if (obj != null && obj.equals(value)) {
+            entry.getValue().usedThisCycle = true;
+            return entry.getKey();
+        }
+    }
+    return null;
+}
+    /**
+     * {@inheritDoc}
+     * Does not take the cache lock. Values whose soft references have been cleared are skipped.
+     */
+    @Override
+public ImmutableSet<V> getValues() {
+    stats.recordSlowSearch();
+    ImmutableSet.Builder<V> builder = ImmutableSet.builder();
+    for (WorkingSetObject<V> wso : theCache.values()) {
+        V obj = wso.get();
+        if (obj != null) {
+            builder.add(obj);
+        }
+    }
+    return builder.build();
+}
+}
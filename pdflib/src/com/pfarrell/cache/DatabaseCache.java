@@ -10,6 +10,7 @@ package com.pfarrell.cache;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
@@ -18,10 +19,15 @@ import com.pfarrell.busobj.AbstractPersistentBusinessObject;
 import com.pfarrell.utils.database.DBUtil;
 import com.pfarrell.utils.misc.TimeUtils;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import org.apache.log4j.Logger;
 
@@ -44,14 +50,48 @@ import org.apache.log4j.Logger;
  */
 public class DatabaseCache<K extends Comparable<? super K>, V extends AbstractPersistentBusinessObject & Cacheable<K, V>> 
                            extends WorkingSetCache<K, V>  {
+/**
+ * how the periodic refresh finds the rows to re-read
+ */
+public enum RefreshMode {
+    /** re-select every entry used since the last sweep, by primary key */
+    FULL,
+    /** select only rows whose date of change is after the last refresh,
+     *  see {@link AbstractPersistentBusinessObject#getDateOfChangeFieldName()} */
+    INCREMENTAL,
+    /** no periodic re-select, for when changes arrive through the {@link InvalidationBus} */
+    NONE
+}
      /** logger instance */
 protected static final Logger dbcLog = Logger.getLogger(DatabaseCache.class);
 /** how often to force refresh from DB */
 static final int CLANKmod = 3;
 /** nap time for a pass */
 public static final long napTime = CacheFactory.getCommonSleepTime();
+/** how far back an incremental refresh reaches before the last refresh, in milliseconds */
+static final long REFRESH_OVERLAP_MILLIS = TimeUnit.SECONDS.toMillis(2);
+/** default number of keys in one bulk load "in" clause */
+public static final int DEFAULT_BULK_CHUNK_SIZE = 500;
 /** only check the database periodically, or it won't be a cache */
 private int dbClankCounter = 0;
+/** class of the values, needed to load them from the database */
+protected volatile Class<V> valueClass;
+/** number of keys in one bulk load "in" clause */
+private volatile int bulkChunkSize = DEFAULT_BULK_CHUNK_SIZE;
+/** how the periodic refresh finds its rows */
+private volatile RefreshMode refreshMode = RefreshMode.FULL;
+/** time of the start of the last successful refresh, in milliseconds, zero if none */
+private volatile long lastRefresh = 0L;
+/** age in nanoseconds at which a read entry is reloaded in the background, zero for never */
+private volatile long refreshAheadNanos = 0L;
+/** age in nanoseconds after which an entry is stale, zero if entries never go stale */
+private volatile long staleNanos = 0L;
+/** loads one value by primary key, see {@link #getOrLoad} */
+private final CacheLoader<K, V> dbLoader = new CacheLoader<K, V>() {
+        public V load(K key) throws Exception {
+            return loadFromDatabase(key);
+        }
+    };
  
     /** Creates a new instance of DatabaseCache */
     public DatabaseCache() {
@@ -70,18 +110,29 @@ private int dbClankCounter = 0;
  * @param nap  the time (in millis) to sleep between cycles
  * @param instance an instance of the type of PBO that we are caching, used to set the name of the thread.
  */
+    @SuppressWarnings("unchecked")
     public DatabaseCache(long nap, V instance) {
         super(nap, instance);
         if (instance == null) {
-            myThread.setName("DatabaseCache");
+            myName = "DatabaseCache";
         } else {
             setThreadName(instance.getClass());
+            valueClass = (Class<V>) instance.getClass();
         }
     }
     @Override
     public void setThreadName(Class clz) {
         Preconditions.checkNotNull(clz);
-        myThread.setName("DbC:" + clz.getSimpleName());
+        if (explicitName) return;
+        myName = "DbC:" + clz.getSimpleName();
+    }
+/**
+ * {@inheritDoc}
+ * @return the class of the business objects
+ */
+    @Override
+    public Class<?> getValueType() {
+        return valueClass;
     }
 /**
  * {@inheritDoc}
@@ -89,10 +140,10 @@ private int dbClankCounter = 0;
  */
     @Override
     public String getName() {
-        String rval = myThread.getName();
-        if (rval.equals(defaultName) && breadcrumb != null) {
+        String rval = myName;
+        if (rval.equals(defaultName) && breadcrumb != null && !explicitName) {
             rval = "DbC:d:" + breadcrumb;
-            myThread.setName(rval);
+            myName = rval;
         }
         return rval;
     }
@@ -116,8 +167,155 @@ public  V put(K key, V value) {
     Preconditions.checkNotNull(key);
     Preconditions.checkNotNull(value);
     Preconditions.checkArgument(value instanceof Cacheable && value instanceof AbstractPersistentBusinessObject);
+    if (valueClass == null) valueClass = (Class<V>) value.getClass();
     return super.put(key, value);
 }
+/**
+ * Returns the value for the key, loading it from the database on a miss. Concurrent misses
+ * on the same key share one select, see {@link #get(Object, CacheLoader)}.
+ * This is what {@link Cacheable#get} should call.
+ * @param key primary key of the value
+ * @return the value, or <code>null</code> if there is no such row
+ * @throws ExecutionException wraps any Sql problems
+ */
+public V getOrLoad(K key) throws ExecutionException {
+    return get(key, dbLoader);
+}
+/**
+ * Returns the value for the key, as {@link WorkingSetCache#get}. If refresh-ahead is on and
+ * the entry is near or past its stale deadline, a reload from the database is started in
+ * the background, and the current value is returned at once.
+ * @param key the cache key
+ * @return the cached value, or null
+ */
+    @Override
+public V get(K key) {
+    V rval = super.get(key);
+    long ahead = refreshAheadNanos;
+    if (rval != null && ahead > 0L) {
+        refreshIfDue(key, dbLoader, ahead);
+    }
+    return rval;
+}
+/**
+ * turns on refresh-ahead. An entry read once it is <code>fraction</code> of the way to its
+ * stale deadline is reloaded in the background, the reader gets the cached value without
+ * waiting. An entry read after the deadline is served stale while it is reloaded.
+ * Only one reload of a key runs at a time.
+ * @param staleAfter age at which an entry is stale, zero turns refresh-ahead off
+ * @param unit unit of staleAfter
+ * @param fraction how far toward the deadline a read starts the reload, more than 0, at most 1
+ */
+public void setRefreshAhead(long staleAfter, TimeUnit unit, double fraction) {
+    Preconditions.checkArgument(staleAfter >= 0L);
+    Preconditions.checkNotNull(unit);
+    Preconditions.checkArgument(fraction > 0.0 && fraction <= 1.0);
+    staleNanos = unit.toNanos(staleAfter);
+    refreshAheadNanos = (long) (staleNanos * fraction);
+    if (staleNanos > 0L && refreshAheadNanos == 0L) refreshAheadNanos = 1L;
+}
+/**
+ * @param unit the unit wanted
+ * @return age at which an entry is stale, zero if refresh-ahead is off
+ */
+public long getStaleAfter(TimeUnit unit) {
+    return unit.convert(staleNanos, TimeUnit.NANOSECONDS);
+}
+/**
+ * @param unit the unit wanted
+ * @return age at which a read entry is reloaded, zero if refresh-ahead is off
+ */
+public long getRefreshAheadAfter(TimeUnit unit) {
+    return unit.convert(refreshAheadNanos, TimeUnit.NANOSECONDS);
+}
+/**
+ * sets the largest number of keys {@link #getAll(Collection)} puts in one query
+ * @param arg number of keys per "in" clause
+ */
+public void setBulkLoadChunkSize(int arg) {
+    Preconditions.checkArgument(arg > 0);
+    bulkChunkSize = arg;
+}
+/**
+ * @return the largest number of keys put in one bulk load query
+ */
+public int getBulkLoadChunkSize() {
+    return bulkChunkSize;
+}
+/**
+ * Returns the values for all of the keys. Keys that are not in the cache are selected from
+ * the database together, in "in" clause queries of up to {@link #getBulkLoadChunkSize()} keys,
+ * rather than one select each, on the primary database, as {@link #loadFromDatabase} does.
+ * The loaded values are put in the cache.
+ * The keys must be numbers, and the class of the values must be known.
+ * @param keys primary keys of the values
+ * @return map of keys to values in the order of the argument, keys with no row are left out
+ * @throws ExecutionException wraps any Sql problems
+ */
+@SuppressWarnings("unchecked")
+public ImmutableMap<K, V> getAll(Collection<K> keys) throws ExecutionException {
+    Preconditions.checkNotNull(keys);
+    LinkedHashMap<K, V> found = new LinkedHashMap<K, V>();
+    LinkedHashSet<K> missing = new LinkedHashSet<K>();
+    for (K key : keys) {
+        V value = get(key);
+        if (value != null) {
+            found.put(key, value);
+        } else {
+            missing.add(key);
+        }
+    }
+    if (!missing.isEmpty()) {
+        Class<V> clz = valueClass;
+        Preconditions.checkState(clz != null, "DatabaseCache does not know its value class yet");
+        try {
+            V proto = clz.getDeclaredConstructor().newInstance();
+            for (List<K> chunk : Iterables.partition(missing, bulkChunkSize)) {
+                String query = proto.getStringForSelect() + " where " + proto.getIdFieldName()
+                            + " in " + DBUtil.makeInClause(chunk);
+                long start = stats.startTimer();
+                List<V> rows = AbstractPersistentBusinessObject.factoryFromPrimary(query, clz);
+                stats.recordLoadTime(start);
+                for (V row : rows) {
+                    K key = row.getCacheKey();
+                    put(key, row);
+                    if (missing.contains(key)) found.put(key, row);
+                }
+            }
+        } catch (SQLException ex) {
+            stats.recordLoadFailure();
+            dbcLog.error(myName + " bulk load failed", ex);
+            throw new ExecutionException(ex);
+        } catch (ReflectiveOperationException ex) {
+            stats.recordLoadFailure();
+            throw new ExecutionException(ex);
+        }
+    }
+    ImmutableMap.Builder<K, V> rval = ImmutableMap.builder();
+    for (K key : keys) {
+        V value = found.remove(key);
+        if (value != null) rval.put(key, value);
+    }
+    return rval.build();
+}
+/**
+ * selects one row by primary key. The key must be a number, and the class of the values
+ * must be known, from the constructor or an earlier put. Reads the primary database, a
+ * lagging replica could hand back the row another node just invalidated, and with
+ * {@link RefreshMode#NONE} nothing would ever replace it.
+ * @param key primary key of the row
+ * @return the value, or <code>null</code> if there is no such row
+ * @throws Exception pass up any Sql or instantiation problems
+ */
+protected V loadFromDatabase(K key) throws Exception {
+    Preconditions.checkArgument(key instanceof Number, "DatabaseCache can only load numeric keys");
+    Class<V> clz = valueClass;
+    Preconditions.checkState(clz != null, "DatabaseCache does not know its value class yet");
+    V proto = clz.getDeclaredConstructor().newInstance();
+    proto.setId(((Number) key).longValue());
+    List<V> found = AbstractPersistentBusinessObject.factoryFromPrimary(proto.getSingleRecordSelect(), clz);
+    return found.isEmpty() ? null : found.get(0);
+}
     
 /**
  * sweep thru the cache, deleting any unmarked items and clearing all marks, 
@@ -126,37 +324,44 @@ public  V put(K key, V value) {
  @SuppressWarnings("unchecked")
  @Override
 protected void processPass() {
-    if (dbcLog.isTraceEnabled()) awscLog.trace("DBC: Doing pass for " + myThread.getName());
+    if (dbcLog.isTraceEnabled()) awscLog.trace("DBC: Doing pass for " + myName);
     Set<K> keySet = null;
+    drainCollected();
     lock.writeLock().lock();
     try {
         keySet = theCache.keySet();
         for (K key: keySet) {
             WorkingSetObject<V> wso = theCache.get(key);
             if (wso == null) continue;
-            if ( wso.usedThisCycle ) {
+            if (wso.get() == null) {
+                removeCollected(key, wso);
+            } else if ( wso.usedThisCycle ) {
                 wso.usedThisCycle = false;
             }
             else {
-                remove(key);
+                long generation = spillGeneration(key);
+                if (theCache.remove(key, wso)) {
+                    entryRemoved(key, wso);
+                    entryEvicted(key, wso, generation);
+                }
             }
         }
     } finally {
         lock.writeLock().unlock();
     }
     dbClankCounter++;
-    if ( (dbClankCounter % CLANKmod) == 0 &&  super.size() > 0) {
+    if ( (dbClankCounter % CLANKmod) == 0 && refreshMode != RefreshMode.NONE && super.size() > 0) {
         refreshValues();
     }
-    if (dbcLog.isDebugEnabled()) dbcLog.debug("DBC:postPass " + myThread.getName() + " in use " + super.size());
+    if (dbcLog.isDebugEnabled()) dbcLog.debug("DBC:postPass " + myName + " in use " + super.size());
 }
     /**
-     * gets a query string for the fetch
-     * @param firstKey first key to access a cache value
-     * @return a query string for the fetch
+     * gets a query string that re-selects the entries used since the last sweep
+     * @param proto an instance of the value class, used for the table and column names
+     * @return a query string for the fetch, or null if nothing needs refreshing
      */
-private String makeRefreshString(V firstVal) {
-    Preconditions.checkNotNull(firstVal);
+private String makeRefreshString(V proto) {
+    Preconditions.checkNotNull(proto);
     String query = null;
     lock.readLock().lock();
     try {
@@ -169,77 +374,130 @@ private String makeRefreshString(V firstVal) {
                         }
                     });
             ArrayList<K> ids = Lists.newArrayList(iter);
+            if (ids.isEmpty()) return null;
             Collections.sort(ids);
-            query = firstVal.getStringForSelect() +
-                        " where " + firstVal.getIdFieldName() + "  in " +   DBUtil.makeInClause(ids);
-            assert query != null : "Query string is null with non-null key & value";
-            if (dbcLog.isTraceEnabled()) dbcLog.trace(myThread.getName() + " " + query);
+            query = proto.getStringForSelect() +
+                        " where " + proto.getIdFieldName() + "  in " +   DBUtil.makeInClause(ids);
+            if (dbcLog.isTraceEnabled()) dbcLog.trace(myName + " " + query);
         } else 
-            if (dbcLog.isTraceEnabled()) dbcLog.trace(myThread.getName() + " nothing in cache to refersh");
+            if (dbcLog.isTraceEnabled()) dbcLog.trace(myName + " nothing in cache to refersh");
     } finally {
         lock.readLock().unlock();
     }
     return query;
 }
     /**
-     * periodically, loop through the values in this cache, and go clank the DB to get them again, so that
-     * we don't reflect really stale data
+     * gets a query string that selects the rows changed since the last refresh. The window
+     * starts {@link #REFRESH_OVERLAP_MILLIS} early, since the database only keeps whole seconds
+     * and the clocks may differ a little; re-reading a row twice does no harm.
+     * @param proto an instance of the value class, used for the table and column names
+     * @param since time of the last refresh, in milliseconds
+     * @return a query string for the fetch
+     */
+private String makeChangedSinceString(V proto, long since) {
+    Preconditions.checkNotNull(proto);
+    Timestamp from = new Timestamp(Math.max(0L, since - REFRESH_OVERLAP_MILLIS));
+    String query = proto.getStringForSelect() + " where " + proto.getDateOfChangeFieldName() +
+                    " >= " + TimeUtils.toQuotedSQLDateTimeFormat(from);
+    if (dbcLog.isTraceEnabled()) dbcLog.trace(myName + " " + query);
+    return query;
+}
+/**
+ * sets how the periodic refresh finds the rows to re-read
+ * @param arg the refresh mode
+ */
+public void setRefreshMode(RefreshMode arg) {
+    Preconditions.checkNotNull(arg);
+    refreshMode = arg;
+}
+/**
+ * @return how the periodic refresh finds the rows to re-read
+ */
+public RefreshMode getRefreshMode() {
+    return refreshMode;
+}
+    /**
+     * periodically, go clank the DB to get the cached values again, so that
+     * we don't reflect really stale data. In {@link RefreshMode#INCREMENTAL} mode only rows
+     * changed since the last refresh are selected, if the value class does not name its
+     * date of change column, this falls back to {@link RefreshMode#FULL}.
+     * <p>
+     * The query runs without any cache lock held, the rows are then swapped into place
+     * for the keys still in the cache, see {@link #applyRefresh}.
      */
-@SuppressWarnings("unchecked")
 protected  void refreshValues() {
     if (super.isEmpty()) return;
-    ImmutableSet<K> keys = super.keySet();
-    if (dbcLog.isDebugEnabled()) {
-        dbcLog.debug(String.format("refreshing for %d", keys.size()));
+    Class<V> clz = valueClass;
+    if (clz == null) return;
+    V proto = null;
+    try {
+        proto = clz.getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException ex) {
+        dbcLog.error(myName + " can not refresh", ex);
+        return;
     }
-    V firstVal = null;
-    K firstKey = null;
+    long started = System.currentTimeMillis();
+    long since = lastRefresh;
     String query = null;
-    lock.readLock().lock();
-    try {
-        if (! keys.isEmpty()) {
-            firstKey = super.keySet().iterator().next();
-            firstVal = super.get(firstKey);             // this sets in use 
-            if (firstVal == null) {
-                dbcLog.error("Null first val with real key " + firstKey);
-                return;
-            }
-            query = makeRefreshString(firstVal);
-            if (query == null) return;
-        }
-    } finally {
-        lock.readLock().unlock();
+    if (refreshMode == RefreshMode.INCREMENTAL && proto.getDateOfChangeFieldName() != null && since > 0L) {
+        query = makeChangedSinceString(proto, since);
+    } else {
+        query = makeRefreshString(proto);
+    }
+    if (query == null) {
+        lastRefresh = started;
+        return;
     }
-    
     if (dbcLog.isTraceEnabled()) {
-        dbcLog.trace(String.format("Will freshen database for %s at %s ", firstVal.getClass().getName(), TimeUtils.getNowDateUTC()));
+        dbcLog.trace(String.format("Will freshen database for %s at %s ", clz.getName(), TimeUtils.getNowDateUTC()));
+    }
+    List<V> dbvalues = null;
+    long queryStart = stats.startTimer();
+    try {
+        dbvalues = AbstractPersistentBusinessObject.factoryFromQueryString(query, clz, false);
+        stats.recordRefreshTime(queryStart);
+    } catch (SQLException ex) {
+        dbcLog.error(ex);
+        return;
+    }
+    lastRefresh = started;
+    int changed = applyRefresh(dbvalues);
+    if (dbcLog.isDebugEnabled()) {
+        dbcLog.debug(String.format("%s refreshed %d of %d rows read", myName, changed, dbvalues.size()));
     }
-    Class firstClass = firstVal.getClass();
-    assert firstClass != null;
-    List<? extends AbstractPersistentBusinessObject> dbvalues = null;
+}
+    /**
+     * swap freshly read values into the cache, in place. Only keys that are still cached
+     * are touched, and an entry replaced by a concurrent put is left alone, since
+     * it is at least as new as the row. So is a value with changes not yet written. The used flag carries over, a refresh is not a use.
+     * @param dbvalues values read from the database
+     * @return number of entries replaced
+     */
+protected int applyRefresh(List<V> dbvalues) {
+    int rval = 0;
     lock.writeLock().lock();
     try {
-        try {
-            dbvalues = AbstractPersistentBusinessObject.factoryFromQueryString(query, firstClass);
-            assert dbvalues != null;
-        } catch (SQLException ex) {
-            dbcLog.error(ex);
-            if (dbvalues == null) {
-                return;
+        for (V dbv : dbvalues) {
+            K key = dbv.getCacheKey();
+            WorkingSetObject<V> wso = theCache.get(key);
+            if (wso == null) {
+                OffHeapStore<K> store = offHeap;
+                if (store != null) store.remove(key);   // the next get reloads the row
+                continue;
             }
-        }
-        for ( AbstractPersistentBusinessObject dbv : dbvalues) {
-            Cacheable<K, V> asCache = null;
-            if ( dbv instanceof Cacheable) {
-                asCache = (Cacheable<K, V> ) dbv;
-                K key = asCache.getCacheKey();
-                super.put(key, ((V) dbv));
-                theCache.get(key).usedThisCycle = false;        // don't mark as used
+            if (isUnwritten(wso.get())) continue;      // this node's save is not flushed yet
+            WorkingSetObject<V> fresh = newEntry(key, dbv);
+            fresh.usedThisCycle = wso.usedThisCycle;
+            if (theCache.replace(key, wso, fresh)) {
+                entryRemoved(key, wso);
+                entryAdded(key, fresh);
+                rval++;
             }
         }
     } finally {
         lock.writeLock().unlock();
     }
+    return rval;
 }
 
 }
@@ -4,9 +4,11 @@
 
 package com.pfarrell.cache;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import java.io.PrintWriter;
 import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
 
 /**
  * The <code>DenningCache</code> interface defines the functions for an implementation of
@@ -16,7 +18,7 @@ import java.util.HashMap;
  * The cache contains a HashMap but does not expose all of the functions of a HashMap. The
  * key functions that are exported include:
  * <ul>
- * <li><a href=#get>get</a> to retreive an object
+ * <li><a href=#get>get</a> to retreive an object, optionally loading it on a miss
  * <li><a href=#put>put</a> to store an object in the cache
  * <li><a href=#remove>remove</a> to explicitly remove an object from the cache (rarely used).
  * <li><a href=#clear>clear</a> to clear the cache
@@ -33,12 +35,12 @@ import java.util.HashMap;
  * Communications of the ACM, May 1968
  * <p>
  * This class is nearly automatic and self contained.
- * To use it, declare this and use it. But since it is
- * multi-threaded, you do have to kill the threads to have the process
+ * To use it, declare this and use it. Sweeps are run by the shared {@link SweepScheduler},
+ * you should stop them to have the process
  * exit cleanly using the {@link CacheFactory#closeAllThreads} function.
  * <p>
- * Subclasses need to set the "noStart" flag in the constructor and then manually
- * call start() when construction is finished.
+ * The constructor schedules the first sweep one interval out, so subclasses
+ * do not start anything themselves, the sweep never runs on a half built cache.
  *
  * 
  * @param <K> generic type of key
@@ -82,6 +84,31 @@ public interface DenningCache<K, V> extends Runnable {
      */
     V get(K key);
 
+    /**
+     * Returns the value to which the specified key is mapped in this cache, loading it
+     * with the loader if it is not there. Concurrent calls for the same missing key
+     * share a single load: one caller runs the loader, the others wait for its result.
+     * A non-null loaded value is put in the cache.
+     *
+     * @param key a key in the cache.
+     * @param loader computes the value on a miss
+     * @return the cached or loaded value, <code>null</code> if the loader found none
+     * @throws ExecutionException wraps any exception thrown by the loader
+     */
+    V get(K key, CacheLoader<? super K, ? extends V> loader) throws ExecutionException;
+
+    /**
+     * Returns the values for all of the keys, loading any that are missing,
+     * as with {@link #get(Object, CacheLoader)}.
+     *
+     * @param keys the keys to look up
+     * @param loader computes the value on a miss
+     * @return map of keys to values, keys with no value are left out
+     * @throws ExecutionException wraps any exception thrown by the loader
+     */
+    ImmutableMap<K, V> getAll(Iterable<? extends K> keys, CacheLoader<? super K, ? extends V> loader)
+                throws ExecutionException;
+
     /**
      * slow but occasionally useful routine to slog thru the elements
      * looking for a value, returning its key. Note that this locks the whole table
@@ -152,13 +179,13 @@ public interface DenningCache<K, V> extends Runnable {
     V remove(K key);
 
     /**
-     * basic cache sweeper thread.
+     * does one sweep of the cache, called by the shared {@link SweepScheduler}.
      * Note: envoking programs do <i>not</i> need to explicitly call this.
      */
     void run();
 
     /**
-     * sets the thread name, handy for debugging
+     * sets the cache name, handy for debugging
      * @param clz the class name, should be the same a V
      */
     void setThreadName(Class clz);
@@ -174,11 +201,11 @@ public interface DenningCache<K, V> extends Runnable {
      */
     boolean isEmpty();
     /**
-     * Safely starts this thread.
+     * Safely starts sweeping, does nothing if a sweep is already scheduled.
      */
     void ensureRunning();
     /**
-     * stops thread.
+     * stops sweeping.
      */
     void shutdown();
     /**
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.cache;
+
+import com.google.common.base.Preconditions;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The <code>FrequencySketch</code> class is a small count-min sketch used to estimate how often a key
+ * has been seen recently. It keeps four rows of saturating 4-bit counters (held in bytes), and halves
+ * every counter once the number of increments reaches ten times the cache size, so old popularity
+ * fades away.
+ * <p>
+ * Counter increments are not synchronized. A lost increment only makes the estimate a little low, which is
+ * acceptable for an admission filter. The addition count is atomic, and only the thread whose compare and set
+ * halves it runs the aging step, so a sample is never aged twice.
+ *
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+class FrequencySketch {
+/** number of rows (hash functions) */
+static final int DEPTH = 4;
+/** largest count a counter can hold */
+static final int MAX_COUNT = 15;
+/** per row seeds for the hash */
+private static final int[] SEEDS = { 0x97cb3127, 0x0ba2b8d5, 0x5ba1a1e5, 0x2d7b11f1 };
+
+private final byte[][] table;
+private final int mask;
+private final int sampleSize;
+private final AtomicInteger additions = new AtomicInteger();
+
+/**
+ * constructor
+ * @param maximumSize expected maximum number of entries in the cache
+ */
+FrequencySketch(int maximumSize) {
+    Preconditions.checkArgument(maximumSize > 0);
+    int width = Integer.highestOneBit(Math.max(16, maximumSize - 1)) << 1;
+    table = new byte[DEPTH][width];
+    mask = width - 1;
+    sampleSize = 10 * Math.max(16, maximumSize);
+}
+/**
+ * record one occurrence of the key
+ * @param key the key
+ */
+void increment(Object key) {
+    int hash = spread(key.hashCode());
+    boolean added = false;
+    for (int i = 0; i < DEPTH; i++) {
+        byte[] row = table[i];
+        int idx = indexOf(hash, i);
+        if (row[idx] < MAX_COUNT) {
+            row[idx]++;
+            added = true;
+        }
+    }
+    if (added && additions.incrementAndGet() >= sampleSize) {
+        reset();
+    }
+}
+/**
+ * estimate the number of recent occurrences of the key
+ * @param key the key
+ * @return estimated frequency, from 0 to {@link #MAX_COUNT}
+ */
+int frequency(Object key) {
+    int hash = spread(key.hashCode());
+    int rval = MAX_COUNT;
+    for (int i = 0; i < DEPTH; i++) {
+        rval = Math.min(rval, table[i][indexOf(hash, i)]);
+    }
+    return rval;
+}
+/**
+ * halve all counters, the aging step. Only the caller that wins the compare and set on the addition count
+ * does the halving, the others return at once.
+ */
+void reset() {
+    int seen = additions.get();
+    if (seen < sampleSize || !additions.compareAndSet(seen, seen / 2)) {
+        return;
+    }
+    for (byte[] row : table) {
+        for (int j = 0; j < row.length; j++) {
+            row[j] = (byte) (row[j] >>> 1);
+        }
+    }
+}
+/**
+ * forget everything
+ */
+void clear() {
+    for (byte[] row : table) {
+        Arrays.fill(row, (byte) 0);
+    }
+    additions.set(0);
+}
+private int indexOf(int hash, int row) {
+    int h = (hash ^ SEEDS[row]) * 0x9E3779B9;
+    h ^= h >>> 16;
+    return h & mask;
+}
+private static int spread(int h) {
+    h ^= (h >>> 17);
+    h *= 0xed5ad4bb;
+    h ^= (h >>> 11);
+    return h;
+}
+}
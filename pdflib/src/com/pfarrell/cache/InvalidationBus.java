@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+
+/**
+ * The <code>InvalidationBus</code> class tells the other nodes sharing the database which cached
+ * objects this node has changed or deleted, and drops the entries other nodes report.
+ * <p>
+ * Keys are collected per topic, usually the class name of the cached values, and sent as one
+ * {@link InvalidationMessage} when {@link #getMaxBatch()} keys are waiting or
+ * {@link #getBatchDelay()} milliseconds after the first one, whichever comes first. A received
+ * message removes its keys from every tracked {@link DatabaseCache} of that value class, and
+ * from any cache whose name is the topic. Messages from this node are ignored.
+ * <p>
+ * Nothing is sent until a channel is set with {@link #setChannel}. With invalidations flowing,
+ * the periodic re-select of {@link DatabaseCache} can be turned off, see
+ * {@link DatabaseCache.RefreshMode#NONE}.
+ *
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+public final class InvalidationBus {
+    /** logger instance */
+private static final Logger ibLog = Logger.getLogger(InvalidationBus.class);
+/** default most keys in one message */
+public static final int DEFAULT_MAX_BATCH = 256;
+/** default wait before sending a partial batch, in milliseconds */
+public static final long DEFAULT_BATCH_DELAY = 50L;
+/** id of this node, so it can ignore its own messages */
+private static final String originId = UUID.randomUUID().toString();
+
+private static volatile InvalidationChannel channel;
+private static volatile int maxBatch = DEFAULT_MAX_BATCH;
+private static volatile long batchDelay = DEFAULT_BATCH_DELAY;
+/** keys waiting to be sent, by topic, guarded by lock */
+private static final Map<String, LinkedHashSet<Object>> pending = new HashMap<String, LinkedHashSet<Object>>();
+private static int pendingCount;
+private static ScheduledFuture<?> flushTask;
+private static final ReentrantLock lock = new ReentrantLock();
+
+private static final LongAdder messagesSent = new LongAdder();
+private static final LongAdder keysSent = new LongAdder();
+private static final LongAdder messagesReceived = new LongAdder();
+private static final LongAdder keysInvalidated = new LongAdder();
+
+private static final InvalidationChannel.Listener receiver = new InvalidationChannel.Listener() {
+        public void onMessage(InvalidationMessage msg) {
+            receive(msg);
+        }
+    };
+
+private InvalidationBus() {
+}
+/**
+ * sets the channel to the other nodes, replacing any earlier one
+ * @param arg the channel, null to stop sending and receiving
+ */
+public static void setChannel(InvalidationChannel arg) {
+    lock.lock();
+    try {
+        InvalidationChannel old = channel;
+        if (old == arg) return;
+        if (old != null) old.unsubscribe(receiver);
+        channel = arg;
+        if (arg != null) arg.subscribe(receiver);
+    } finally {
+        lock.unlock();
+    }
+}
+/**
+ * @return the channel, or null
+ */
+public static InvalidationChannel getChannel() {
+    return channel;
+}
+/**
+ * @return id of this node in messages
+ */
+public static String getOriginId() {
+    return originId;
+}
+/**
+ * sets the most keys sent in one message
+ * @param arg maximum keys per message
+ */
+public static void setMaxBatch(int arg) {
+    Preconditions.checkArgument(arg > 0);
+    maxBatch = arg;
+}
+/**
+ * @return the most keys sent in one message
+ */
+public static int getMaxBatch() {
+    return maxBatch;
+}
+/**
+ * sets how long a partial batch waits for more keys
+ * @param arg delay in milliseconds, zero to send at once
+ */
+public static void setBatchDelay(long arg) {
+    Preconditions.checkArgument(arg >= 0L);
+    batchDelay = arg;
+}
+/**
+ * @return how long a partial batch waits, in milliseconds
+ */
+public static long getBatchDelay() {
+    return batchDelay;
+}
+/**
+ * tells the other nodes that the key has changed or is gone. Does nothing if there is no channel.
+ * Only Long, Integer and String keys can be sent, any other is logged and dropped, see
+ * {@link InvalidationMessage#isWireKey}.
+ * @param topic what the key belongs to, usually the class name of the cached value
+ * @param key the key
+ */
+public static void publish(String topic, Object key) {
+    Preconditions.checkNotNull(topic);
+    Preconditions.checkNotNull(key);
+    if (channel == null) return;
+    if (!InvalidationMessage.isWireKey(key)) {
+        ibLog.warn("can not send invalidation of " + topic + " key of " + key.getClass().getName());
+        return;
+    }
+    boolean sendNow = false;
+    lock.lock();
+    try {
+        LinkedHashSet<Object> keys = pending.get(topic);
+        if (keys == null) {
+            keys = new LinkedHashSet<Object>();
+            pending.put(topic, keys);
+        }
+        if (keys.add(key)) pendingCount++;
+        if (pendingCount >= maxBatch || batchDelay == 0L) {
+            sendNow = true;
+        } else if (flushTask == null) {
+            try {
+                flushTask = SweepScheduler.getExecutor().schedule(new Runnable() {
+                        public void run() {
+                            flush();
+                        }
+                    }, batchDelay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ex) {
+                sendNow = true;
+            }
+        }
+    } finally {
+        lock.unlock();
+    }
+    if (sendNow) flush();
+}
+/**
+ * sends all waiting keys now
+ */
+public static void flush() {
+    Map<String, LinkedHashSet<Object>> batch = null;
+    lock.lock();
+    try {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        if (pending.isEmpty()) return;
+        batch = new HashMap<String, LinkedHashSet<Object>>(pending);
+        pending.clear();
+        pendingCount = 0;
+    } finally {
+        lock.unlock();
+    }
+    InvalidationChannel ch = channel;
+    if (ch == null) return;
+    for (Map.Entry<String, LinkedHashSet<Object>> entry : batch.entrySet()) {
+        for (List<Object> chunk : Iterables.partition(entry.getValue(), maxBatch)) {
+            try {
+                ch.publish(new InvalidationMessage(originId, entry.getKey(), chunk));
+                messagesSent.increment();
+                keysSent.add(chunk.size());
+            } catch (RuntimeException ex) {
+                ibLog.error("can not send invalidations for " + entry.getKey(), ex);
+            }
+        }
+    }
+}
+/**
+ * drops the keys of a message from the matching local caches
+ * @param msg the message
+ */
+@SuppressWarnings("unchecked")
+static void receive(InvalidationMessage msg) {
+    if (originId.equals(msg.getOrigin())) return;
+    messagesReceived.increment();
+    String topic = msg.getTopic();
+    for (DenningCache<?, ?> known : CacheFactory.getKnownCaches()) {
+        if (!matches(known, topic)) continue;
+        // the key types are only known at run time, a wrong one is caught below
+        DenningCache<Object, ?> cache = (DenningCache<Object, ?>) known;
+        for (Object key : msg.getKeys()) {
+            try {
+                if (cache.remove(key) != null) keysInvalidated.increment();
+            } catch (ClassCastException ex) {
+                ibLog.warn(cache.getName() + " can not use invalidated key " + key);
+            }
+        }
+    }
+}
+private static boolean matches(DenningCache<?, ?> cache, String topic) {
+    if (cache instanceof DatabaseCache) {
+        Class<?> clz = ((DatabaseCache<?, ?>) cache).valueClass;
+        if (clz != null && clz.getName().equals(topic)) return true;
+    }
+    return topic.equals(cache.getName());
+}
+/**
+ * sends anything waiting, called by {@link CacheFactory#closeAllThreads}. The channel is left open.
+ */
+static void shutdown() {
+    flush();
+}
+/**
+ * @return number of messages sent
+ */
+public static long getMessagesSent() {
+    return messagesSent.sum();
+}
+/**
+ * @return number of keys sent
+ */
+public static long getKeysSent() {
+    return keysSent.sum();
+}
+/**
+ * @return number of messages received from other nodes
+ */
+public static long getMessagesReceived() {
+    return messagesReceived.sum();
+}
+/**
+ * @return number of local entries dropped because of received messages
+ */
+public static long getKeysInvalidated() {
+    return keysInvalidated.sum();
+}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.cache;
+
+/**
+ * The <code>InvalidationChannel</code> interface defines how cache invalidations travel between
+ * the processes (nodes) sharing a database. The {@link InvalidationBus} batches the keys
+ * and hands each {@link InvalidationMessage} to the channel, which must deliver it to the
+ * listeners on every node, including, harmlessly, the sender.
+ * <p>
+ * Implementations might use a message broker, multicast, or a database table. See
+ * {@link LoopbackInvalidationChannel} for an in process one, used for testing.
+ *
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+public interface InvalidationChannel {
+    /**
+     * receives the messages of a channel
+     */
+    interface Listener {
+        /**
+         * called once for each message, on a thread of the channel's choosing
+         * @param msg the message
+         */
+        void onMessage(InvalidationMessage msg);
+    }
+    /**
+     * sends the message to every node
+     * @param msg the message
+     */
+    void publish(InvalidationMessage msg);
+    /**
+     * adds a listener for messages from any node
+     * @param listener the listener
+     */
+    void subscribe(Listener listener);
+    /**
+     * removes a listener
+     * @param listener the listener
+     */
+    void unsubscribe(Listener listener);
+    /**
+     * stops the channel, releasing any connections or threads
+     */
+    void close();
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The <code>InvalidationMessage</code> class holds a batch of invalidated keys for one topic,
+ * usually the class name of the cached values, from one node. It has a compact binary form
+ * for the wire, see {@link #toBytes()}: each key is a tag byte and its value. Only Long,
+ * Integer and String keys are carried, see {@link #isWireKey}; nothing received is ever
+ * deserialized as an object, so a message from the channel can only name keys.
+ *
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+public final class InvalidationMessage {
+/** first byte of the encoded form */
+static final byte VERSION = 1;
+private static final byte TAG_LONG = 'L';
+private static final byte TAG_INT = 'I';
+private static final byte TAG_STRING = 'S';
+
+private final String origin;
+private final String topic;
+private final ImmutableList<Object> keys;
+
+/**
+ * constructor
+ * @param anOrigin id of the sending node
+ * @param aTopic what the keys belong to, usually the class name of the cached values
+ * @param someKeys the invalidated keys
+ */
+public InvalidationMessage(String anOrigin, String aTopic, Iterable<?> someKeys) {
+    Preconditions.checkNotNull(anOrigin);
+    Preconditions.checkNotNull(aTopic);
+    origin = anOrigin;
+    topic = aTopic;
+    keys = ImmutableList.copyOf(someKeys);
+}
+/**
+ * @return id of the sending node
+ */
+public String getOrigin() {
+    return origin;
+}
+/**
+ * @return what the keys belong to
+ */
+public String getTopic() {
+    return topic;
+}
+/**
+ * @return the invalidated keys
+ */
+public ImmutableList<Object> getKeys() {
+    return keys;
+}
+/**
+ * tells if a key can be sent
+ * @param key a cache key
+ * @return true for a Long, Integer or String
+ */
+public static boolean isWireKey(Object key) {
+    return key instanceof Long || key instanceof Integer || key instanceof String;
+}
+/**
+ * encodes this message
+ * @return the bytes to send
+ * @throws IOException if a key is not a Long, Integer or String
+ */
+public byte[] toBytes() throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(32 + keys.size() * 9);
+    DataOutputStream dos = new DataOutputStream(bos);
+    dos.writeByte(VERSION);
+    dos.writeUTF(origin);
+    dos.writeUTF(topic);
+    dos.writeInt(keys.size());
+    for (Object key : keys) {
+        if (key instanceof Long) {
+            dos.writeByte(TAG_LONG);
+            dos.writeLong(((Long) key).longValue());
+        } else if (key instanceof Integer) {
+            dos.writeByte(TAG_INT);
+            dos.writeInt(((Integer) key).intValue());
+        } else if (key instanceof String) {
+            dos.writeByte(TAG_STRING);
+            dos.writeUTF((String) key);
+        } else {
+            throw new IOException("invalidation keys must be Long, Integer or String, not "
+                            + key.getClass().getName());
+        }
+    }
+    dos.flush();
+    return bos.toByteArray();
+}
+/**
+ * decodes a message made by {@link #toBytes()}
+ * @param data the bytes received
+ * @return the message
+ * @throws IOException if the bytes are not a message
+ */
+public static InvalidationMessage fromBytes(byte[] data) throws IOException {
+    Preconditions.checkNotNull(data);
+    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+    if (dis.readByte() != VERSION) throw new IOException("unknown invalidation message version");
+    String origin = dis.readUTF();
+    String topic = dis.readUTF();
+    int count = dis.readInt();
+    ImmutableList.Builder<Object> keys = ImmutableList.builder();
+    for (int i = 0; i < count; i++) {
+        byte tag = dis.readByte();
+        switch (tag) {
+            case TAG_LONG:
+                keys.add(Long.valueOf(dis.readLong()));
+                break;
+            case TAG_INT:
+                keys.add(Integer.valueOf(dis.readInt()));
+                break;
+            case TAG_STRING:
+                keys.add(dis.readUTF());
+                break;
+            default:
+                throw new IOException("bad key tag " + tag);
+        }
+    }
+    return new InvalidationMessage(origin, topic, keys.build());
+}
+    @Override
+public String toString() {
+    return "Invalidation[" + origin + " " + topic + " " + keys.size() + " keys]";
+}
+}
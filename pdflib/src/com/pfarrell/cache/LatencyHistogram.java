@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.cache;
+
+import com.google.common.base.Preconditions;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * The <code>LatencyHistogram</code> class implements a contention free histogram of elapsed times.
+ * Times are kept in nanoseconds in power of two buckets, each bucket is a striped {@link LongAdder}
+ * so that many threads can record at the same time without bouncing a cache line between cores.
+ * Percentiles are approximate, they report the upper bound of the bucket holding the percentile.
+ *
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+public class LatencyHistogram {
+/** number of buckets, bucket i holds times less than 2^i nanoseconds */
+static final int NUM_BUCKETS = 40;
+
+private final String name;
+private final LongAdder[] buckets = new LongAdder[NUM_BUCKETS];
+private final LongAdder count = new LongAdder();
+private final LongAdder totalNanos = new LongAdder();
+private final LongAccumulator maxNanos = new LongAccumulator(new LongBinaryOperator() {
+        public long applyAsLong(long left, long right) {
+            return Math.max(left, right);
+        }
+    }, 0L);
+
+/**
+ * constructor
+ * @param aName name used as a prefix when reporting
+ */
+public LatencyHistogram(String aName) {
+    Preconditions.checkNotNull(aName);
+    name = aName;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+        buckets[i] = new LongAdder();
+    }
+}
+/**
+ * records one elapsed time
+ * @param nanos elapsed time in nanoseconds
+ */
+public void record(long nanos) {
+    if (nanos < 0) nanos = 0;
+    int idx = Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    buckets[idx].increment();
+    count.increment();
+    totalNanos.add(nanos);
+    maxNanos.accumulate(nanos);
+}
+/**
+ * @return number of times recorded
+ */
+public long getCount() {
+    return count.sum();
+}
+/**
+ * @return mean elapsed time in nanoseconds, zero if nothing recorded
+ */
+public long getMeanNanos() {
+    long n = count.sum();
+    return n == 0 ? 0 : totalNanos.sum() / n;
+}
+/**
+ * @return largest elapsed time recorded, in nanoseconds
+ */
+public long getMaxNanos() {
+    return maxNanos.get();
+}
+/**
+ * gets the approximate elapsed time at the argument percentile
+ * @param pct percentile, between 0 and 100
+ * @return upper bound, in nanoseconds, of the bucket holding the percentile
+ */
+public long getPercentileNanos(double pct) {
+    Preconditions.checkArgument(pct >= 0.0 && pct <= 100.0);
+    long[] snap = new long[NUM_BUCKETS];
+    long total = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+        snap[i] = buckets[i].sum();
+        total += snap[i];
+    }
+    if (total == 0) return 0;
+    long target = (long) Math.ceil(total * pct / 100.0);
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+        seen += snap[i];
+        if (seen >= target && snap[i] > 0) {
+            return 1L << i;
+        }
+    }
+    return getMaxNanos();
+}
+/**
+ * adds a summary of this histogram into the argument map, keys are prefixed with our name
+ * @param map the map to fill
+ */
+public void addTo(Map<String, Object> map) {
+    map.put(name + ".count", Long.valueOf(getCount()));
+    map.put(name + ".meanNanos", Long.valueOf(getMeanNanos()));
+    map.put(name + ".p50Nanos", Long.valueOf(getPercentileNanos(50.0)));
+    map.put(name + ".p99Nanos", Long.valueOf(getPercentileNanos(99.0)));
+    map.put(name + ".maxNanos", Long.valueOf(getMaxNanos()));
+}
+/**
+ * clears all counts
+ */
+public void reset() {
+    for (LongAdder b : buckets) {
+        b.reset();
+    }
+    count.reset();
+    totalNanos.reset();
+    maxNanos.reset();
+}
+}
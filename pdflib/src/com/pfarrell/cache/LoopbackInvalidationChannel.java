@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.cache;
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.log4j.Logger;
+
+/**
+ * The <code>LoopbackInvalidationChannel</code> class is an {@link InvalidationChannel} that stays
+ * inside one process. Each published message is encoded and decoded again, as a real channel
+ * would, and delivered at once to every listener on the calling thread. Give every simulated
+ * node its own listener to test invalidation without a network.
+ *
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+public class LoopbackInvalidationChannel implements InvalidationChannel {
+    /** logger instance */
+private static final Logger licLog = Logger.getLogger(LoopbackInvalidationChannel.class);
+
+private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+private final LongAdder published = new LongAdder();
+private final LongAdder bytesSent = new LongAdder();
+private volatile boolean closed = false;
+
+/**
+ * {@inheritDoc}
+ */
+public void publish(InvalidationMessage msg) {
+    Preconditions.checkNotNull(msg);
+    if (closed) return;
+    InvalidationMessage copy = null;
+    try {
+        byte[] wire = msg.toBytes();
+        bytesSent.add(wire.length);
+        copy = InvalidationMessage.fromBytes(wire);
+    } catch (IOException ex) {
+        licLog.error("can not encode invalidation", ex);
+        return;
+    }
+    published.increment();
+    for (Listener l : listeners) {
+        l.onMessage(copy);
+    }
+}
+/**
+ * {@inheritDoc}
+ */
+public void subscribe(Listener listener) {
+    Preconditions.checkNotNull(listener);
+    listeners.addIfAbsent(listener);
+}
+/**
+ * {@inheritDoc}
+ */
+public void unsubscribe(Listener listener) {
+    listeners.remove(listener);
+}
+/**
+ * {@inheritDoc}
+ */
+public void close() {
+    closed = true;
+    listeners.clear();
+}
+/**
+ * @return number of messages published
+ */
+public long getPublished() {
+    return published.sum();
+}
+/**
+ * @return total encoded size of the messages published
+ */
+public long getBytesSent() {
+    return bytesSent.sum();
+}
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.cache;
+
+import com.google.common.base.Preconditions;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+
+/**
+ * The <code>OffHeapStore</code> class is the optional second tier of an {@link AbstractWSCache}.
+ * Values the sweeper evicts from the working set are serialized into a direct (off heap)
+ * buffer, and moved back to the heap the next time they are asked for, so a large cache
+ * does not have to keep millions of objects where the garbage collector has to trace them.
+ * <p>
+ * The buffer is one slab cut into fixed size blocks, a value takes as many blocks as it
+ * needs, not necessarily adjacent. When the slab is full the least recently stored values
+ * are dropped. The store has its own counters, see {@link #addTo(Map)}.
+ *
+ * @param <K> generic type of key
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+public class OffHeapStore<K> {
+    /** logger instance */
+private static final Logger ohsLog = Logger.getLogger(OffHeapStore.class);
+/** default size of one block, in bytes */
+public static final int DEFAULT_BLOCK_SIZE = 256;
+
+private final ByteBuffer slab;
+private final int blockSize;
+private final int blockCount;
+/** stack of free block numbers */
+private final int[] freeBlocks;
+private int freeTop;
+/** where each stored value lives, in least recently stored order */
+private final LinkedHashMap<K, Slot> slots = new LinkedHashMap<K, Slot>();
+/** guards the slab, the free list and the slots */
+private final ReentrantLock lock = new ReentrantLock();
+/** number of stripes of the removal generations, a power of two */
+private static final int GENERATION_STRIPES = 64;
+/** bumped under the lock by every remove of a key of the stripe, see {@link #put} */
+private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+private final LongAdder stores = new LongAdder();
+private final LongAdder hits = new LongAdder();
+private final LongAdder misses = new LongAdder();
+private final LongAdder evictions = new LongAdder();
+private final LongAdder rejected = new LongAdder();
+
+/**
+ * constructor
+ * @param capacity size of the slab in bytes, at most 2GB
+ * @param aBlockSize size of one block in bytes
+ */
+public OffHeapStore(long capacity, int aBlockSize) {
+    Preconditions.checkArgument(aBlockSize > 0, "block size must be positive");
+    Preconditions.checkArgument(capacity >= aBlockSize && capacity <= Integer.MAX_VALUE,
+                    "off heap capacity must be between one block and 2GB");
+    blockSize = aBlockSize;
+    blockCount = (int) (capacity / aBlockSize);
+    slab = ByteBuffer.allocateDirect(blockCount * blockSize);
+    freeBlocks = new int[blockCount];
+    for (int i = 0; i < blockCount; i++) {
+        freeBlocks[i] = blockCount - 1 - i;
+    }
+    freeTop = blockCount;
+}
+/**
+ * stores the serialized value, replacing any earlier value for the key, and dropping the
+ * oldest values if there is no room. Nothing is stored if the key was removed since its
+ * generation was read, so an evicted value can not come back after a remove.
+ * @param key the key
+ * @param data the serialized value
+ * @param generation {@link #generation} of the key, read before the entry left the cache
+ * @return false if the value is larger than the whole store, or the key was removed
+ */
+boolean put(K key, byte[] data, long generation) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkNotNull(data);
+    int needed = Math.max(1, (data.length + blockSize - 1) / blockSize);
+    if (needed > blockCount) {
+        rejected.increment();
+        return false;
+    }
+    lock.lock();
+    try {
+        if (generations.get(stripe(key)) != generation) return false;   // removed while we were busy
+        release(slots.remove(key));
+        Iterator<Map.Entry<K, Slot>> oldest = slots.entrySet().iterator();
+        while (freeTop < needed && oldest.hasNext()) {
+            Slot victim = oldest.next().getValue();
+            oldest.remove();
+            release(victim);
+            evictions.increment();
+        }
+        int[] blocks = new int[needed];
+        for (int i = 0; i < needed; i++) {
+            int block = freeBlocks[--freeTop];
+            blocks[i] = block;
+            int offset = i * blockSize;
+            slab.position(block * blockSize);
+            slab.put(data, offset, Math.min(blockSize, data.length - offset));
+        }
+        slots.put(key, new Slot(blocks, data.length));
+        stores.increment();
+        return true;
+    } finally {
+        lock.unlock();
+    }
+}
+/**
+ * removes and returns the serialized value for the key
+ * @param key the key
+ * @return the serialized value, or null if it is not here
+ */
+byte[] take(K key) {
+    lock.lock();
+    try {
+        Slot slot = slots.remove(key);
+        if (slot == null) {
+            misses.increment();
+            return null;
+        }
+        byte[] rval = new byte[slot.length];
+        for (int i = 0; i < slot.blocks.length; i++) {
+            int offset = i * blockSize;
+            slab.position(slot.blocks[i] * blockSize);
+            slab.get(rval, offset, Math.min(blockSize, slot.length - offset));
+        }
+        release(slot);
+        hits.increment();
+        return rval;
+    } finally {
+        lock.unlock();
+    }
+}
+/**
+ * drops the value for the key, if any, and fails any spill of the key that read its
+ * generation before this
+ * @param key the key
+ */
+void remove(K key) {
+    lock.lock();
+    try {
+        generations.incrementAndGet(stripe(key));
+        release(slots.remove(key));
+    } finally {
+        lock.unlock();
+    }
+}
+/**
+ * drops everything
+ */
+void clear() {
+    lock.lock();
+    try {
+        for (int i = 0; i < GENERATION_STRIPES; i++) {
+            generations.incrementAndGet(i);
+        }
+        for (Slot slot : slots.values()) {
+            release(slot);
+        }
+        slots.clear();
+    } finally {
+        lock.unlock();
+    }
+}
+/**
+ * gets the removal generation of the key, to be read before its entry leaves the cache and
+ * handed to {@link #put}
+ * @param key the key
+ * @return the generation of its stripe
+ */
+long generation(K key) {
+    return generations.get(stripe(key));
+}
+private static int stripe(Object key) {
+    int h = key.hashCode();
+    return (h ^ (h >>> 16)) & (GENERATION_STRIPES - 1);
+}
+/** puts the blocks of the slot back on the free list, must hold the lock */
+private void release(Slot slot) {
+    if (slot == null) return;
+    for (int block : slot.blocks) {
+        freeBlocks[freeTop++] = block;
+    }
+}
+/**
+ * @return number of values stored
+ */
+public int size() {
+    lock.lock();
+    try {
+        return slots.size();
+    } finally {
+        lock.unlock();
+    }
+}
+/**
+ * @return size of the slab in bytes
+ */
+public long getCapacityBytes() {
+    return (long) blockCount * blockSize;
+}
+/**
+ * @return bytes in blocks that are in use
+ */
+public long getUsedBytes() {
+    lock.lock();
+    try {
+        return (long) (blockCount - freeTop) * blockSize;
+    } finally {
+        lock.unlock();
+    }
+}
+/**
+ * @return number of values stored since creation
+ */
+public long getStores() {
+    return stores.sum();
+}
+/**
+ * @return number of values found and moved back to the heap
+ */
+public long getHits() {
+    return hits.sum();
+}
+/**
+ * @return number of lookups that found nothing
+ */
+public long getMisses() {
+    return misses.sum();
+}
+/**
+ * @return number of values dropped to make room
+ */
+public long getEvictions() {
+    return evictions.sum();
+}
+/**
+ * @return number of values that could not be stored, too big or not serializable
+ */
+public long getRejected() {
+    return rejected.sum();
+}
+/** record a value that could not be serialized */
+void recordRejected() {
+    rejected.increment();
+}
+/**
+ * adds the counters to the argument map, prefixed with "offHeap."
+ * @param map the map to fill
+ */
+public void addTo(Map<String, Object> map) {
+    map.put("offHeap.size", Long.valueOf(size()));
+    map.put("offHeap.capacityBytes", Long.valueOf(getCapacityBytes()));
+    map.put("offHeap.usedBytes", Long.valueOf(getUsedBytes()));
+    map.put("offHeap.stores", Long.valueOf(getStores()));
+    map.put("offHeap.hits", Long.valueOf(getHits()));
+    map.put("offHeap.misses", Long.valueOf(getMisses()));
+    map.put("offHeap.evictions", Long.valueOf(getEvictions()));
+    map.put("offHeap.rejected", Long.valueOf(getRejected()));
+}
+/**
+ * serializes the argument
+ * @param value the object
+ * @return the bytes, or null if the object can not be serialized
+ */
+static byte[] serialize(Object value) {
+    if (!(value instanceof Serializable)) return null;
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(512);
+    try {
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(value);
+        oos.close();
+    } catch (IOException ex) {
+        ohsLog.debug("can not serialize " + value.getClass().getName(), ex);
+        return null;
+    }
+    return bos.toByteArray();
+}
+/**
+ * rebuilds an object from bytes made by {@link #serialize}
+ * @param data the bytes
+ * @return the object, or null if it can not be read back
+ */
+static Object deserialize(byte[] data) {
+    try {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            return ois.readObject();
+        } finally {
+            ois.close();
+        }
+    } catch (IOException ex) {
+        ohsLog.warn("can not deserialize off heap value", ex);
+    } catch (ClassNotFoundException ex) {
+        ohsLog.warn("can not deserialize off heap value", ex);
+    }
+    return null;
+}
+
+/**
+ * the blocks holding one value
+ */
+private static class Slot {
+    final int[] blocks;
+    final int length;
+    Slot(int[] someBlocks, int aLength) {
+        blocks = someBlocks;
+        length = aLength;
+    }
+}
+}
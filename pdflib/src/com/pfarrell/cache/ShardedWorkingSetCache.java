@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The <code>ShardedWorkingSetCache</code> class is a {@link DenningCache} that splits its keys
+ * over a number of independent segments, each with its own map, its own lock and its own
+ * sweep state, so many cores do not all meet on one map and one lock.
+ * <ul>
+ * <li>reads take no lock at all
+ * <li>writes and removes lock only the segment of their key
+ * <li>each scheduled sweep does one segment, the next in turn, holding only that segment's
+ * lock, so the sweeps come segment count times as often, and every segment is swept once
+ * per sweep interval, each on its own clock
+ * </ul>
+ * The segment count is rounded up to a power of two. Working set aging works as in
+ * {@link WorkingSetCache}: an entry not used between two sweeps of its segment is dropped.
+ * <p>
+ * Make one with {@link CacheBuilder#shards(int)}, or directly. It is not a
+ * {@link WorkingSetCache}, so {@link CacheFactory#setWscClass} does not take it.
+ *
+ * @param <K> generic type of key
+ * @param <V> generic type of value
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+public class ShardedWorkingSetCache<K, V> extends AbstractWSCache<K, V> {
+/** default number of segments */
+public static final int DEFAULT_SHARDS = Math.max(2, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()));
+
+private final Segment<K, V>[] segments;
+private final int mask;
+private final List<ConcurrentHashMap<K, WorkingSetObject<V>>> maps;
+/** segment the next sweep does, only the sweep uses it */
+private int sweepCursor = 0;
+
+/**
+ * constructor, accept time for sweep cycle, uses the default number of segments
+ * @param nap time to sleep between cycles (in milliseconds)
+ */
+    public ShardedWorkingSetCache(long nap) {
+        this(nap, null, DEFAULT_SHARDS);
+    }
+/**
+ * constructor, accept time for sweep cycle, instance for name and number of segments
+ * @param nap time to sleep between cycles (in milliseconds)
+ * @param instance an instance of type V, may be null
+ * @param shards number of segments, rounded up to a power of two
+ */
+    public ShardedWorkingSetCache(long nap, V instance, int shards) {
+        super(nap, instance);
+        Preconditions.checkArgument(shards > 0 && shards <= (1 << 16), "shards must be from 1 to 65536");
+        int count = Integer.highestOneBit(shards);
+        if (count < shards) count <<= 1;
+        // a generic array can not be made, the raw one only ever holds Segment<K, V>
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        Segment<K, V>[] made = new Segment[count];
+        segments = made;
+        List<ConcurrentHashMap<K, WorkingSetObject<V>>> list = new ArrayList<ConcurrentHashMap<K, WorkingSetObject<V>>>(count);
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<K, V>();
+            list.add(segments[i].map);
+        }
+        maps = ImmutableList.copyOf(list);
+        mask = count - 1;
+    }
+/**
+ * @return number of segments
+ */
+public int getShardCount() {
+    return segments.length;
+}
+private Segment<K, V> segmentFor(Object key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return segments[(h * 0x9E3779B9) >>> 16 & mask];
+}
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+protected ConcurrentHashMap<K, WorkingSetObject<V>> mapFor(K key) {
+    return segmentFor(key).map;
+}
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+protected List<ConcurrentHashMap<K, WorkingSetObject<V>>> allMaps() {
+    List<ConcurrentHashMap<K, WorkingSetObject<V>>> rval = maps;
+    if (rval == null) return ImmutableList.of();     // read before the constructor finished
+    return rval;
+}
+    /**
+     * {@inheritDoc}
+     * One segment is swept per call, so this is the sweep interval over the segment count.
+     */
+    @Override
+protected long getSweepDelay() {
+    if (segments == null) return super.getSweepDelay();
+    return Math.max(1L, getNaptime() / segments.length);
+}
+/**
+ * sweeps the next segment, under its own lock
+ */
+    @Override
+protected void processPass() {
+    if (segments == null) return;       // swept before the constructor finished
+    drainCollected();
+    Segment<K, V> seg = segments[sweepCursor];
+    sweepCursor = (sweepCursor + 1) & mask;
+    sweep(seg);
+}
+private void sweep(Segment<K, V> seg) {
+    seg.lock.lock();
+    try {
+        Iterator<Map.Entry<K, WorkingSetObject<V>>> it = seg.map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<K, WorkingSetObject<V>> entry = it.next();
+            WorkingSetObject<V> wso = entry.getValue();
+            if (wso.get() == null) {
+                removeCollected(entry.getKey(), wso);
+            } else if (wso.usedThisCycle) {
+                wso.usedThisCycle = false;
+            } else {
+                long generation = spillGeneration(entry.getKey());
+                if (seg.map.remove(entry.getKey(), wso)) {
+                    entryRemoved(entry.getKey(), wso);
+                    entryEvicted(entry.getKey(), wso, generation);
+                }
+            }
+        }
+        seg.sweeps++;
+    } finally {
+        seg.lock.unlock();
+    }
+}
+    /**
+     * {@inheritDoc}
+     * Locks only the segment of the key.
+     */
+    @Override
+public V put(K key, V value) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkNotNull(value);
+    long start = stats.startTimer();
+    drainCollected();
+    if (breadcrumb == null) breadcrumb = value.getClass().getSimpleName();
+    Segment<K, V> seg = segmentFor(key);
+    WorkingSetObject<V> rval = null;
+    seg.lock.lock();
+    try {
+        WorkingSetObject<V> wso = newEntry(key, value);
+        rval = seg.map.put(key, wso);
+        if (rval != null) entryRemoved(key, rval);
+        entryAdded(key, wso);
+    } finally {
+        seg.lock.unlock();
+    }
+    OffHeapStore<K> store = offHeap;
+    if (store != null) store.remove(key);
+    stats.recordPut(start);
+    return (rval != null) ? rval.get() : null;
+}
+    /**
+     * {@inheritDoc}
+     * Locks only the segment of the key.
+     */
+    @Override
+public V remove(K key) {
+    Preconditions.checkNotNull(key);
+    drainCollected();
+    Segment<K, V> seg = segmentFor(key);
+    WorkingSetObject<V> wso = null;
+    seg.lock.lock();
+    try {
+        wso = seg.map.remove(key);
+        if (wso != null) entryRemoved(key, wso);
+    } finally {
+        seg.lock.unlock();
+    }
+    OffHeapStore<K> store = offHeap;
+    if (store != null) store.remove(key);
+    if (wso == null) {
+        stats.recordMiss();
+    } else {
+        stats.recordHit();
+    }
+    return wso == null ? null : wso.get();
+}
+    /**
+     * {@inheritDoc}
+     * Takes no lock.
+     */
+    @Override
+public V get(K key) {
+    Preconditions.checkNotNull(key);
+    long start = stats.startTimer();
+    WorkingSetObject<V> wso = segmentFor(key).map.get(key);
+    V rval = wso == null ? null : wso.get();
+    if (rval == null) {
+        if (wso != null) removeCollected(key, wso);
+        rval = promote(key);
+        if (rval == null) {
+            stats.recordMiss();
+        } else {
+            stats.recordHit();
+        }
+    } else {
+        stats.recordHit();
+        if (!wso.usedThisCycle) wso.usedThisCycle = true;
+    }
+    stats.recordGet(start);
+    return rval;
+}
+    /**
+     * {@inheritDoc}
+     */
+public boolean containsKey(K key) {
+    Preconditions.checkNotNull(key);
+    return segmentFor(key).map.containsKey(key);
+}
+    /**
+     * {@inheritDoc}
+     * Searches the segments one after another, unless the value index is on.
+     */
+public boolean contains(V value) {
+    return getKeyForValue(value) != null;
+}
+    /**
+     * {@inheritDoc}
+     */
+public K getKeyForValue(V value) {
+    Preconditions.checkNotNull(value);
+    if (valueIndex != null) {
+        return indexedLookup(value);
+    }
+    stats.recordSlowSearch();
+    for (ConcurrentHashMap<K, WorkingSetObject<V>> map : allMaps()) {
+        for (Map.Entry<K, WorkingSetObject<V>> entry : map.entrySet()) {
+            V obj = entry.getValue().get();
+            if (obj != null && obj.equals(value)) {
+                entry.getValue().usedThisCycle = true;
+                return entry.getKey();
+            }
+        }
+    }
+    return null;
+}
+    /**
+     * {@inheritDoc}
+     */
+protected ImmutableSet<K> keySet() {
+    ImmutableSet.Builder<K> rval = ImmutableSet.builder();
+    for (ConcurrentHashMap<K, WorkingSetObject<V>> map : allMaps()) {
+        rval.addAll(map.keySet());
+    }
+    return rval.build();
+}
+    /**
+     * {@inheritDoc}
+     */
+public ImmutableSet<V> getValues() {
+    ImmutableSet.Builder<V> rval = ImmutableSet.builder();
+    for (ConcurrentHashMap<K, WorkingSetObject<V>> map : allMaps()) {
+        for (WorkingSetObject<V> wso : map.values()) {
+            V obj = wso.get();
+            if (obj != null) rval.add(obj);
+        }
+    }
+    return rval.build();
+}
+    /**
+     * {@inheritDoc}
+     */
+public long getNumberSlowSearches() {
+    return stats.getSlowSearches();
+}
+/**
+ * gets the number of times each segment has been swept, handy for checking the sweeps
+ * @return sweeps per segment
+ */
+public long[] getSegmentSweeps() {
+    if (segments == null) return new long[0];
+    long[] rval = new long[segments.length];
+    for (int i = 0; i < segments.length; i++) {
+        rval[i] = segments[i].sweeps;
+    }
+    return rval;
+}
+
+/**
+ * one partition of the keys
+ */
+private static class Segment<K, V> {
+    final ConcurrentHashMap<K, WorkingSetObject<V>> map = new ConcurrentHashMap<K, WorkingSetObject<V>>();
+    /** held by writers and the sweep of this segment */
+    final ReentrantLock lock = new ReentrantLock();
+    /** number of sweeps of this segment, written under the lock */
+    volatile long sweeps;
+}
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.cache;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+
+/**
+ * The <code>SweepScheduler</code> class runs the sweeps of every {@link AbstractWSCache} on one
+ * small, shared pool of daemon threads, rather than each cache owning its own sleeping thread.
+ * <p>
+ * Each cache is scheduled as a one shot task that re-schedules itself when its sweep is done, so a
+ * cache never sweeps concurrently with itself, and each interval can be jittered independently.
+ * The jitter spreads out the sweeps of caches that were created at the same time.
+ * <p>
+ * A second, separate pool runs the background reloads of refresh-ahead, so a slow database
+ * never holds up the sweeps. Its queue is bounded, a refresh that does not fit is just dropped,
+ * the next access of the entry will ask again.
+ * <p>
+ * The pools are created on first use and torn down by {@link CacheFactory#closeAllThreads}, a later
+ * cache will create new pools.
+ *
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+public final class SweepScheduler {
+    /** logger instance */
+private static final Logger ssLog = Logger.getLogger(SweepScheduler.class);
+/** default number of sweeper threads */
+public static final int DEFAULT_POOL_SIZE = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 4));
+/** default number of refresh threads */
+public static final int DEFAULT_REFRESH_POOL_SIZE = 2;
+/** most refreshes that may wait for a thread */
+static final int REFRESH_QUEUE_SIZE = 1024;
+
+private static int poolSize = DEFAULT_POOL_SIZE;
+private static ScheduledThreadPoolExecutor executor;
+private static int refreshPoolSize = DEFAULT_REFRESH_POOL_SIZE;
+private static ThreadPoolExecutor refresher;
+private static final ReentrantLock lock = new ReentrantLock();
+
+private SweepScheduler() {
+}
+/**
+ * sets the number of sweeper threads, takes effect the next time the pool is created
+ * @param arg number of threads
+ */
+public static void setPoolSize(int arg) {
+    Preconditions.checkArgument(arg > 0);
+    poolSize = arg;
+}
+/**
+ * @return the configured number of sweeper threads
+ */
+public static int getPoolSize() {
+    return poolSize;
+}
+/**
+ * sets the number of refresh threads, takes effect the next time the pool is created
+ * @param arg number of threads
+ */
+public static void setRefreshPoolSize(int arg) {
+    Preconditions.checkArgument(arg > 0);
+    refreshPoolSize = arg;
+}
+/**
+ * @return the configured number of refresh threads
+ */
+public static int getRefreshPoolSize() {
+    return refreshPoolSize;
+}
+/**
+ * gets the executor, creating it if needed
+ * @return the live executor
+ */
+static ScheduledThreadPoolExecutor getExecutor() {
+    lock.lock();
+    try {
+        if (executor == null || executor.isShutdown()) {
+            final AtomicInteger counter = new AtomicInteger();
+            executor = new ScheduledThreadPoolExecutor(poolSize, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "cacheSweeper-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        }
+        return executor;
+    } finally {
+        lock.unlock();
+    }
+}
+/**
+ * schedules the next sweep of the argument cache
+ * @param cache the cache to sweep
+ */
+static void schedule(AbstractWSCache<?, ?> cache) {
+    Preconditions.checkNotNull(cache);
+    try {
+        ScheduledFuture<?> task = getExecutor().schedule(new SweepTask(cache),
+                        jitter(cache.getSweepDelay(), cache.getSweepJitter()), TimeUnit.MILLISECONDS);
+        cache.sweepTask = task;
+    } catch (RejectedExecutionException ex) {
+        ssLog.debug("sweeper shut down, not scheduling " + cache.getName());
+    }
+}
+/**
+ * runs a background reload on the refresh pool, creating the pool if needed
+ * @param task the reload
+ * @return true if the task was accepted, false if the pool is full or shut down
+ */
+static boolean submitRefresh(Runnable task) {
+    Preconditions.checkNotNull(task);
+    ThreadPoolExecutor pool = null;
+    lock.lock();
+    try {
+        if (refresher == null || refresher.isShutdown()) {
+            final AtomicInteger counter = new AtomicInteger();
+            refresher = new ThreadPoolExecutor(refreshPoolSize, refreshPoolSize, 30L, TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<Runnable>(REFRESH_QUEUE_SIZE), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "cacheRefresher-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            refresher.allowCoreThreadTimeOut(true);
+        }
+        pool = refresher;
+    } finally {
+        lock.unlock();
+    }
+    try {
+        pool.execute(task);
+        return true;
+    } catch (RejectedExecutionException ex) {
+        ssLog.debug("refresh pool full or shut down, dropping a refresh");
+        return false;
+    }
+}
+/**
+ * cancels any pending sweep of the argument cache
+ * @param cache the cache
+ */
+static void cancel(AbstractWSCache<?, ?> cache) {
+    ScheduledFuture<?> task = cache.sweepTask;
+    if (task != null) {
+        task.cancel(false);
+    }
+}
+/**
+ * stops all sweeping and refreshing, running sweeps and refreshes are interrupted
+ */
+static void shutdown() {
+    lock.lock();
+    try {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    } finally {
+        lock.unlock();
+    }
+}
+/**
+ * computes a jittered interval
+ * @param interval nominal interval in milliseconds
+ * @param fraction fraction of the interval to vary by, plus or minus
+ * @return jittered interval, at least a millisecond. The naptime itself is held to
+ * {@link AbstractWSCache#MINIMUM_SLEEPTIME} when the cache is made, a cache that sweeps part of
+ * itself at a time may ask for less.
+ */
+static long jitter(long interval, double fraction) {
+    if (fraction <= 0.0) return interval;
+    double factor = 1.0 + fraction * (2.0 * ThreadLocalRandom.current().nextDouble() - 1.0);
+    return Math.max(1L, (long) (interval * factor));
+}
+
+/**
+ * one sweep of one cache, re-schedules itself until the cache is shut down
+ */
+static class SweepTask implements Runnable {
+    private final AbstractWSCache<?, ?> cache;
+    SweepTask(AbstractWSCache<?, ?> arg) {
+        cache = arg;
+    }
+    public void run() {
+        if (!cache.okFlag.get()) return;
+        try {
+            cache.run();
+        } catch (RuntimeException ex) {
+            ssLog.error("sweep failed for " + cache.getName(), ex);
+        } finally {
+            if (cache.okFlag.get() && !Thread.currentThread().isInterrupted()) {
+                schedule(cache);
+            }
+        }
+    }
+}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.cache;
+
+import com.google.common.collect.ImmutableSet;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The <code>ValueIndex</code> class is the optional secondary index of a {@link DenningCache}, it maps
+ * the hash code of each cached value to the keys holding a value with that hash code.
+ * <p>
+ * It holds only hash codes and keys, never the values, so it does not keep soft referenced values
+ * from being collected. Lookups must check the candidate keys against the live cache entries, since
+ * the index may briefly hold keys whose values are gone. Cached values must not change their
+ * hash code while they are in the cache.
+ *
+ * @param <K> generic type of key
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+class ValueIndex<K> {
+private final ConcurrentHashMap<Integer, Set<K>> index = new ConcurrentHashMap<Integer, Set<K>>();
+
+/**
+ * add a key for the argument hash
+ * @param hash hash code of the value
+ * @param key the key of the entry
+ */
+void add(int hash, K key) {
+    Integer h = Integer.valueOf(hash);
+    while (true) {
+        Set<K> keys = index.get(h);
+        if (keys == null) {
+            Set<K> fresh = Collections.newSetFromMap(new ConcurrentHashMap<K, Boolean>(2));
+            keys = index.putIfAbsent(h, fresh);
+            if (keys == null) keys = fresh;
+        }
+        keys.add(key);
+        if (index.get(h) == keys) return;
+        // lost a race with remove() dropping an empty set, go again
+    }
+}
+/**
+ * remove a key from the argument hash
+ * @param hash hash code of the value
+ * @param key the key of the entry
+ */
+void remove(int hash, K key) {
+    Integer h = Integer.valueOf(hash);
+    Set<K> keys = index.get(h);
+    if (keys == null) return;
+    keys.remove(key);
+    if (keys.isEmpty() && index.remove(h, keys)) {
+        // an add() may have slipped in between the check and the remove, put it back
+        for (K k : keys) {
+            add(hash, k);
+        }
+    }
+}
+/**
+ * gets the keys that may hold a value with the argument hash
+ * @param hash hash code of the value
+ * @return copy of the candidate keys, possibly empty
+ */
+ImmutableSet<K> candidates(int hash) {
+    Set<K> keys = index.get(Integer.valueOf(hash));
+    return keys == null ? ImmutableSet.<K>of() : ImmutableSet.copyOf(keys);
+}
+/**
+ * @return number of distinct hash codes in the index
+ */
+int size() {
+    return index.size();
+}
+/**
+ * forget everything
+ */
+void clear() {
+    index.clear();
+}
+}
@@ -8,10 +8,8 @@ package com.pfarrell.cache;
  *  statement are left attached.                                           
  */
 
-import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterables;
 import com.pfarrell.cache.AbstractWSCache.WorkingSetObject;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
@@ -40,12 +38,12 @@ import org.apache.log4j.Logger;
  * Communications of the ACM, May 1968
  * <p>
  * This class is nearly automatic and self contained. 
- * To use it, declare this and use it. But since it is 
- * multi-threaded, you do have to kill the threads to have the process
+ * To use it, declare this and use it. Sweeps are run by the shared {@link SweepScheduler},
+ * you should stop them to have the process
  * exit cleanly using the {@link CacheFactory#closeAllThreads} function.
  * <p>
- * Subclasses need to set the "noStart" flag in the constructor and then manually 
- * call start() when construction is finished.
+ * The constructor schedules the first sweep one interval out, so subclasses
+ * do not start anything themselves, the sweep never runs on a half built cache.
  * @param <K> generic type of key
  * @param <V> generic type of value
  */
@@ -85,19 +83,27 @@ protected static Logger wscLogger = Logger.getLogger(WorkingSetCache.class);
  */
 protected void processPass() {
     if (awscLog.isTraceEnabled()) {
-        awscLog.trace("Doing pass for " + myThread.getName());
+        awscLog.trace("Doing pass for " + myName);
     }
+    drainCollected();
     lock.writeLock().lock();
     try {
         Set<K> keySet = theCache.keySet();
         for (K key: keySet) {
             WorkingSetObject<V> wso =  theCache.get(key);
             if (wso == null) continue;
-            if ( wso.usedThisCycle ) {
+            if (wso.get() == null) {
+                removeCollected(key, wso);
+            } else if ( wso.usedThisCycle ) {
                 wso.usedThisCycle = false;
             }
-            else
-                remove(key);
+            else {
+                long generation = spillGeneration(key);
+                if (theCache.remove(key, wso)) {
+                    entryRemoved(key, wso);
+                    entryEvicted(key, wso, generation);
+                }
+            }
         }
     } finally {
         lock.writeLock().unlock();
@@ -105,11 +111,11 @@ protected void processPass() {
     checkThreadName();
 }
 private void checkThreadName() {
-    String name = myThread.getName();
-    if (defaultName.equals(name)) {
+    String name = myName;
+    if (defaultName.equals(name) && !explicitName) {
         if (breadcrumb != null && wscLogger != null) {
-            wscLogger.debug("fixing thread name to " + breadcrumb);
-            myThread.setName("WSCfix:" +breadcrumb);
+            wscLogger.debug("fixing cache name to " + breadcrumb);
+            myName = "WSCfix:" +breadcrumb;
         }
     }
 }
@@ -136,13 +142,17 @@ public boolean containsKey(K key) {
 /**
  * slow but occasionally useful routine to slog thru the elements
  * looking for a value. Note that this locks the whole table
- * for the long time it takes.
+ * for the long time it takes, unless the value index is enabled,
+ * in which case it is a quick hash lookup.
  * @return <tt>true</tt> if this cache contains a mapping for the specified value.
  * @param value Value to search for
  */
 public boolean contains(V value) {
     Preconditions.checkNotNull(value);
-    numSlowSearches++;
+    if (valueIndex != null) {
+        return indexedLookup(value) != null;
+    }
+    stats.recordSlowSearch();
     Collection<WorkingSetObject<V>> wsoColl = null;
     boolean rval = false;
     lock.readLock().lock();
@@ -166,19 +176,23 @@ public boolean contains(V value) {
  * for the long time it takes. And it marks all visited elements of the cache
  * as in use -- since it sweeps thru them all until it either finds a match
  * or covers the whole table.
+ * If the value index is enabled, this is a quick hash lookup that only marks the found element.
  *
  * @param value the object to look for
  * @return Object the (first) key to the object
  */
 public K getKeyForValue(V value) {
     Preconditions.checkNotNull(value);
-    numSlowSearches++;
+    if (valueIndex != null) {
+        return indexedLookup(value);
+    }
+    stats.recordSlowSearch();
     K rval = null;
     lock.readLock().lock();
     try {
         for (K key :  theCache.keySet() ) {
             V obj = get(key);
-            if ( obj.equals(value)) {
+            if ( obj != null && obj.equals(value)) {
                 rval =  key;
                 break;
             }
@@ -195,11 +209,6 @@ public K getKeyForValue(V value) {
 protected ImmutableSet<K> keySet() {
     return ImmutableSet.copyOf(theCache.keySet());
 }
-private final Function<WorkingSetObject<V>,V> getValueFromWSO = new Function<WorkingSetObject<V>,V>() {
-        public V apply(WorkingSetObject<V> f) {
-            return f.get();
-        }
-};
 /**
  * return a set of the values of the cache.
  * And it marks all visited elements of the cache
@@ -207,22 +216,27 @@ private final Function<WorkingSetObject<V>,V> getValueFromWSO = new Function<Wor
  * @return set of Object values from cache
  */
 public ImmutableSet<V> getValues() {
-    numSlowSearches++;
-    ImmutableSet<V> rval = null;
+    stats.recordSlowSearch();
+    ImmutableSet.Builder<V> builder = ImmutableSet.builder();
     lock.readLock().lock();
     try {
-        rval = ImmutableSet.copyOf(Iterables.transform(theCache.values(), getValueFromWSO));
+        for (WorkingSetObject<V> wso : theCache.values()) {
+            V obj = wso.get();
+            if (obj != null) {
+                builder.add(obj);
+            }
+        }
     } finally {
         lock.readLock().unlock();
     }
-    return rval;
+    return builder.build();
 }
 /**
  * handy getter for the number of full content searches done.
  * use this to make sure we are NOT doing this often.
  * @return number of full scans of content done, this has better be a small value
  */
-public  long getNumberSlowSearches() { return  numSlowSearches;};
+public  long getNumberSlowSearches() { return  stats.getSlowSearches();};
 
 
 } // end WorkingSetCache
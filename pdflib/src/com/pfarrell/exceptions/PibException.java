@@ -36,5 +36,13 @@ public class PibException extends IllegalStateException {
     public PibException(String m) {
         super(m);
     }
+	/**
+     * construct a Bozo with given message and cause
+     * @param m message
+     * @param cause the checked exception this stands for
+     */
+    public PibException(String m, Throwable cause) {
+        super(m, cause);
+    }
     
 }
@@ -23,6 +23,7 @@ import com.google.common.base.Preconditions;
 import com.pfarrell.busobj.Cacheable;
 import com.pfarrell.busobj.AbstractPersistentBusinessObject;
 import com.pfarrell.busobj.UsePreparedStatement;
+import com.pfarrell.cache.InvalidationBus;
 import com.pfarrell.exceptions.PibException;
 import com.pfarrell.exceptions.RequiredValueMissingException;
 import com.pfarrell.utils.misc.TimeUtils;
@@ -31,6 +32,11 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
 import org.apache.log4j.Logger;
 
@@ -46,6 +52,8 @@ import org.apache.log4j.Logger;
 public abstract class AbstractPersistentObject<T extends AbstractPersistentObject> implements PersistentObject, Serializable, Comparable<T> {
     /** class-wide logger static for reuse   */
 protected static final Logger apoLogger = Logger.getLogger(AbstractPersistentObject.class);
+/** most rows sent in one JDBC batch by {@link #saveAll} */
+public static final int SAVE_BATCH_SIZE = 1000;
 /** need to make sure we are thread safe */
 protected final ReentrantLock persistentInitializationLock = new ReentrantLock();    
     /** boolean indicator if loaded or created */
@@ -100,7 +108,8 @@ public int compareTo(AbstractPersistentObject o) {
     return rval;
 }
     /**
-     * deletes object from database
+     * deletes object from database, dropping any update of it waiting in the
+     * {@link WriteBehindQueue}
      * @return true if success
      */
     @SuppressWarnings("unchecked")
@@ -109,15 +118,12 @@ public int compareTo(AbstractPersistentObject o) {
         if (this instanceof Cacheable) {
             Cacheable asCacheable = (Cacheable) this;            
             asCacheable.invalidate(asCacheable.getCacheKey());
+            InvalidationBus.publish(getClass().getName(), asCacheable.getCacheKey());
         }
-        Connection myCon = DBConnectionPool.getConnection();
-        String command = "delete from " + getTable() + " where " +  getIdFieldName()  + " = " + getId(); 
-        Statement stmt = myCon.createStatement();
+        WriteBehindQueue.cancel(this);
+        String command = "delete from " + getTable() + " where " +  getIdFieldName()  + " = ?";
         apoLogger.debug(command);
-        numRows = stmt.executeUpdate(command);
-        stmt.close();
-        DBConnectionPool.returnCon(myCon, null);
-        stmt.close();
+        numRows = DBUtil.executeUpdate(command, Long.valueOf(getId()));
         fromDatabase = false;
         return numRows == 1;
     }
@@ -234,11 +240,25 @@ public int compareTo(AbstractPersistentObject o) {
     public abstract void populateOneRecord(ResultSet rs) throws SQLException;
     
     /**
-     * save object contents to database
+     * save object contents to database. If the class has write-behind on, see
+     * {@link WriteBehindQueue#enable}, an update is queued and written later.
      * @return primary key if insert
      * @throws RequiredValueMissingException when critical key data is missing
      */
     public long save() throws RequiredValueMissingException, SQLException {
+        if (fromDatabase && WriteBehindQueue.isEnabled(getClass())) {
+            validateValues();
+            WriteBehindQueue.enqueue(this);
+            return -1;
+        }
+        return saveNow();
+    }
+    /**
+     * save object contents to database at once, even if the class has write-behind on
+     * @return primary key if insert
+     * @throws RequiredValueMissingException when critical key data is missing
+     */
+    protected long saveNow() throws RequiredValueMissingException, SQLException {
         long autoIncKeyFromApi = -1;
         if (this instanceof UsePreparedStatement) {
             throw new PibException("can not call save() on UsePreparedStatement classes");
@@ -257,9 +277,28 @@ public int compareTo(AbstractPersistentObject o) {
             apoLogger.error(errMsg, ex);
             apoLogger.error(command);
         }
-        Statement stmt = null;
         try {
             myCon = DBConnectionPool.getConnection();
+            autoIncKeyFromApi = saveOn(myCon);
+        } finally {
+            DBConnectionPool.returnCon(myCon, null);
+        }
+        return autoIncKeyFromApi;
+    }
+    /**
+     * writes this object on the argument connection, without validating it
+     * @param myCon connection to use, in auto-commit mode
+     * @return primary key if insert
+     */
+    private long saveOn(Connection myCon) throws SQLException {
+        long autoIncKeyFromApi = -1;
+        String command = null;
+        Statement stmt = null;
+        try {
+            if ( this instanceof AbstractPersistentBusinessObject) {
+                AbstractPersistentBusinessObject asPBO = (AbstractPersistentBusinessObject) this;
+                asPBO.setDateOfChange( TimeUtils.timestampNow());
+            }
             command = getSaveCommandString();
             stmt = myCon.createStatement(java.sql.ResultSet.TYPE_FORWARD_ONLY,
                                 java.sql.ResultSet.CONCUR_UPDATABLE);
@@ -293,17 +332,10 @@ public int compareTo(AbstractPersistentObject o) {
                 if (  autoIncKeyFromApi != -1) {
                     setId( autoIncKeyFromApi );
                 }
-                if ( this instanceof AbstractPersistentBusinessObject) {
-                    AbstractPersistentBusinessObject asPBO = (AbstractPersistentBusinessObject) this;
-                    asPBO.setDateOfChange( TimeUtils.timestampNow());
-                }
                 fromDatabase = true;
                 clearDirtyFlag();
             }
-            if (this instanceof Cacheable) {
-                Cacheable asCacheable = (Cacheable) this;
-                asCacheable.storeThisInCache();
-            }
+            cacheAndPublish();
         } catch (com.mysql.jdbc.exceptions.jdbc4.MySQLIntegrityConstraintViolationException msEx) {
             String msg = "Save Integrity Exception in AbstractPersistentObject save, check logs ";
             if (apoLogger.isDebugEnabled()) {
@@ -319,12 +351,177 @@ public int compareTo(AbstractPersistentObject o) {
             throw sqe;
         } finally {
             if (stmt != null) stmt.close();
-            DBConnectionPool.returnCon(myCon, null);
         }
         return autoIncKeyFromApi;
     }
 
 
+    /**
+     * stores this in its cache, and tells the other nodes it changed, after a save
+     */
+    @SuppressWarnings("unchecked")
+    private void cacheAndPublish() {
+        if (this instanceof Cacheable) {
+            Cacheable asCacheable = (Cacheable) this;
+            asCacheable.storeThisInCache();
+            InvalidationBus.publish(getClass().getName(), asCacheable.getCacheKey());
+        }
+    }
+    /**
+     * saves many objects with few round trips. The objects are grouped by class, and the inserts
+     * and the updates of each class are sent as JDBC batches of at most {@link #SAVE_BATCH_SIZE}
+     * rows, each batch in its own transaction. New rows get their generated ids, and are marked
+     * as from the database, then everything is stored in its cache, as {@link #save()} does.
+     * A batch that fails is rolled back and its rows saved one at a time.
+     * Updates are written at once, even for classes with write-behind on.
+     * @param <T> generic type of the objects
+     * @param objs the objects to save, of any mix of classes
+     * @return number of rows saved
+     * @throws RequiredValueMissingException when critical key data is missing, before anything is saved
+     * @throws SQLException if any row could not be saved, the others are saved
+     */
+    public static <T extends AbstractPersistentObject<?>> int saveAll(Collection<T> objs)
+                throws RequiredValueMissingException, SQLException {
+        Preconditions.checkNotNull(objs);
+        for (T obj : objs) {
+            if (obj instanceof UsePreparedStatement) {
+                throw new PibException("can not call saveAll() on UsePreparedStatement classes");
+            }
+            obj.validateValues();
+        }
+        List<AbstractPersistentObject<?>> failed = new ArrayList<AbstractPersistentObject<?>>();
+        int rval = saveAll(objs, failed);
+        if (!failed.isEmpty()) {
+            AbstractPersistentObject<?> first = failed.get(0);
+            throw new SQLException(String.format("saveAll could not save %d of %d rows, first %s id %d",
+                            failed.size(), objs.size(), first.getClass().getName(), first.getId()));
+        }
+        return rval;
+    }
+    /**
+     * saves many objects with few round trips, see {@link #saveAll(Collection)}, without validating them
+     * @param objs the objects to save
+     * @param failed filled with the objects that could not be saved
+     * @return number of rows saved
+     * @throws SQLException if there is no connection, nothing is saved
+     */
+    static int saveAll(Collection<? extends AbstractPersistentObject<?>> objs, List<AbstractPersistentObject<?>> failed)
+                throws SQLException {
+        Map<Class<?>, List<AbstractPersistentObject<?>>> inserts = new LinkedHashMap<Class<?>, List<AbstractPersistentObject<?>>>();
+        Map<Class<?>, List<AbstractPersistentObject<?>>> updates = new LinkedHashMap<Class<?>, List<AbstractPersistentObject<?>>>();
+        for (AbstractPersistentObject<?> obj : objs) {
+            Map<Class<?>, List<AbstractPersistentObject<?>>> target = obj.fromDatabase ? updates : inserts;
+            List<AbstractPersistentObject<?>> rows = target.get(obj.getClass());
+            if (rows == null) {
+                rows = new ArrayList<AbstractPersistentObject<?>>();
+                target.put(obj.getClass(), rows);
+            }
+            rows.add(obj);
+        }
+        int rval = 0;
+        Connection myCon = DBConnectionPool.getConnection();
+        Exception problem = null;
+        try {
+            myCon.setAutoCommit(false);
+            for (List<AbstractPersistentObject<?>> rows : inserts.values()) {
+                for (int from = 0; from < rows.size(); from += SAVE_BATCH_SIZE) {
+                    rval += saveBatch(myCon, rows.subList(from, Math.min(rows.size(), from + SAVE_BATCH_SIZE)), true, failed);
+                }
+            }
+            for (List<AbstractPersistentObject<?>> rows : updates.values()) {
+                for (int from = 0; from < rows.size(); from += SAVE_BATCH_SIZE) {
+                    rval += saveBatch(myCon, rows.subList(from, Math.min(rows.size(), from + SAVE_BATCH_SIZE)), false, failed);
+                }
+            }
+        } catch (SQLException sqe) {
+            problem = sqe;
+            throw sqe;
+        } finally {
+            try {
+                myCon.setAutoCommit(true);
+            } catch (SQLException ex) {
+                problem = ex;
+            }
+            DBConnectionPool.returnCon(myCon, problem);
+        }
+        return rval;
+    }
+    /**
+     * sends one batch of rows of one class, in a transaction. On failure the batch is rolled
+     * back and its rows saved one at a time, on the same connection.
+     */
+    private static int saveBatch(Connection myCon, List<AbstractPersistentObject<?>> rows, boolean inserts,
+                    List<AbstractPersistentObject<?>> failed) throws SQLException {
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = myCon.createStatement();
+            for (AbstractPersistentObject<?> obj : rows) {
+                if (obj instanceof AbstractPersistentBusinessObject) {
+                    ((AbstractPersistentBusinessObject) obj).setDateOfChange(TimeUtils.timestampNow());
+                }
+                String command = obj.getSaveCommandString();
+                apoLogger.trace(command);
+                stmt.addBatch(command);
+            }
+            stmt.executeBatch();
+            long[] ids = null;
+            if (inserts) {
+                ids = new long[rows.size()];
+                rs = stmt.getGeneratedKeys();
+                int found = 0;
+                while (found < ids.length && rs.next()) {
+                    ids[found++] = rs.getLong(1);
+                }
+                if (found != ids.length) {
+                    throw new SQLException(String.format("batch insert returned %d keys for %d rows", found, ids.length));
+                }
+            }
+            myCon.commit();
+            for (int i = 0; i < rows.size(); i++) {
+                AbstractPersistentObject<?> obj = rows.get(i);
+                if (inserts) {
+                    obj.setId(ids[i]);
+                    obj.fromDatabase = true;
+                }
+                obj.clearDirtyFlag();
+                obj.cacheAndPublish();
+            }
+            return rows.size();
+        } catch (SQLException sqe) {
+            apoLogger.warn(String.format("APO: saveAll batch of %d %s failed, saving one at a time",
+                            rows.size(), rows.get(0).getClass().getName()), sqe);
+            myCon.rollback();
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (SQLException ex) {} // ignore
+            }
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (SQLException ex) {}  // ignore
+            }
+        }
+        int rval = 0;
+        myCon.setAutoCommit(true);
+        try {
+            for (AbstractPersistentObject<?> obj : rows) {
+                try {
+                    obj.saveOn(myCon);
+                    rval++;
+                } catch (Exception ex) {
+                    apoLogger.error("APO: saveAll could not save " + obj.getClass().getName() + " id " + obj.getId(), ex);
+                    failed.add(obj);
+                }
+            }
+        } finally {
+            myCon.setAutoCommit(false);
+        }
+        return rval;
+    }
+
     /**
      * prototype for routine to validate values before saving to database
      */
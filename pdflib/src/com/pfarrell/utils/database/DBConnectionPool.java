@@ -26,8 +26,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.sql.*;
 import java.util.*;
-import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -39,6 +46,28 @@ import org.apache.log4j.Logger;
  * the file path from an environment variable.
  * 
  * Implemented as a singleton.
+ * <p>
+ * The pool is bounded: at most <code>poolMax</code> connections are open, idle or in use, and a
+ * caller that finds them all in use waits, in arrival order, up to <code>poolTimeoutMillis</code>
+ * before getting an SQLTransientConnectionException. <code>poolMin</code> connections are opened
+ * at startup. All three are read from the properties file.
+ * <p>
+ * A background reaper checks the idle connections every <code>poolReaperMillis</code>, with
+ * <code>poolValidationQuery</code> or Connection.isValid, closes the dead and the stale ones, opens
+ * new ones up to <code>poolMin</code>, and logs connections out longer than <code>poolLeakMillis</code>,
+ * with the stack of the getConnection call if <code>poolLeakTrace</code> is true.
+ * <p>
+ * Taking and returning a connection takes no lock: idle connections are on a concurrent stack,
+ * most recently returned first, and a thread first tries the connection it returned last,
+ * which is usually still idle and warm.
+ * <p>
+ * Besides the primary, the properties file may name other datasources in <code>dbDatasources</code>,
+ * each with its own pool. Their settings are the primary's, overridden by properties prefixed with
+ * the name, so <code>replica1.dbHost</code> is enough for a copy of the primary on another host.
+ * The datasources in <code>dbReadReplicas</code> serve {@link #getReadConnection()}, chosen in turn,
+ * or the least busy first if <code>dbReadRouting</code> is <code>leastloaded</code>. Without
+ * replicas, reads go to the primary, as do all writes. {@link #returnCon(Connection)} finds the
+ * pool a connection came from.
  * This will be replaced by using Tomcat or JBoss or something
  * fancier later.
  *
@@ -56,9 +85,38 @@ protected static final Logger dbcpLogger = Logger.getLogger(DBConnectionPool.cla
 /** prop file to read */
     public static final String PDFLIB_ENV_NAME = "PDFLIB_PROPS_PATH";
 
+/** name of the datasource read from the unprefixed properties */
+    public static final String PRIMARY = "primary";
+
 /** flag for initialization */
 private boolean initialized = false;
+/** name of this datasource */
+private String name = PRIMARY;
+    /** the datasources other than the primary, by name */
+private static final ConcurrentHashMap<String, DBConnectionPool> named = new ConcurrentHashMap<String, DBConnectionPool>();
+    /** the same, in the order they were named */
+private static volatile DBConnectionPool[] others = new DBConnectionPool[0];
+    /** the datasources that serve reads, none for the primary */
+private static volatile DBConnectionPool[] replicas = new DBConnectionPool[0];
+    /** pick the replica with fewest connections out, rather than the next in turn */
+private static volatile boolean leastLoaded = false;
+    /** turn of the next replica */
+private static final AtomicInteger nextReplica = new AtomicInteger();
+    /** reads sent to the primary because no replica could give a connection */
+private static final LongAdder replicaFallbacks = new LongAdder();
 
+/** default connections opened at startup and kept open */
+public static final int DEFAULT_POOL_MIN = 2;
+/** default most connections open at once, idle or in use */
+public static final int DEFAULT_POOL_MAX = 32;
+/** default wait for a free connection, in milliseconds */
+public static final long DEFAULT_POOL_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+/** default time between runs of the reaper, in milliseconds */
+public static final long DEFAULT_REAPER_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+/** default time a connection may be out before it is reported as leaked, in milliseconds */
+public static final long DEFAULT_LEAK_THRESHOLD = TimeUnit.MINUTES.toMillis(5);
+/** default wait for Connection.isValid, in seconds */
+public static final int DEFAULT_VALIDATION_TIMEOUT = 2;
 /** how grody we will let something be */
 private static final long MaxUnusedTime = TimeUnit.MINUTES.toMillis(4);
 /** flag if we are executing inside a servlet container */
@@ -80,9 +138,40 @@ private String dbUsername;
 private String dbPasswd;
     /** force session times to use */
 private String sessionTimeZone;
-    /** the pool */
-private IdentityHashMap<Connection, Date> poolConnections = new IdentityHashMap<Connection, Date>();
-private IdentityHashMap<Connection, Date> openConnections = new IdentityHashMap<Connection, Date>();
+    /** every open connection of the pool, JDBC connections compare by identity */
+private final ConcurrentHashMap<Connection, Pooled> all = new ConcurrentHashMap<Connection, Pooled>();
+    /** idle connections, most recently returned first */
+private final ConcurrentLinkedDeque<Pooled> idle = new ConcurrentLinkedDeque<Pooled>();
+    /** the connection each thread returned last */
+private final ThreadLocal<Pooled> affinity = new ThreadLocal<Pooled>();
+    /** most prepared statements kept per connection */
+private int statementCacheSize = StatementCache.DEFAULT_SIZE;
+    /** connections opened at startup */
+private int poolMin = DEFAULT_POOL_MIN;
+    /** most connections open at once */
+private int poolMax = DEFAULT_POOL_MAX;
+    /** wait for a free connection, in milliseconds */
+private long poolTimeoutMillis = DEFAULT_POOL_TIMEOUT;
+    /** one permit per connection that may be handed out, fair so callers are served in order */
+private Semaphore permits = new Semaphore(DEFAULT_POOL_MAX, true);
+    /** callers that gave up waiting */
+private final LongAdder timeouts = new LongAdder();
+    /** time between reaper runs, zero for no reaper */
+private long reaperInterval = DEFAULT_REAPER_INTERVAL;
+    /** time out before a connection is reported as leaked, zero for no reports */
+private long leakThreshold = DEFAULT_LEAK_THRESHOLD;
+    /** keep the stack of each getConnection, for the leak reports */
+private boolean leakTrace = false;
+    /** query that checks an idle connection, null to use Connection.isValid */
+private String validationQuery;
+    /** wait for the check of an idle connection, in seconds */
+private int validationTimeout = DEFAULT_VALIDATION_TIMEOUT;
+    /** runs reap() */
+private ScheduledThreadPoolExecutor reaper;
+    /** idle connections closed by the reaper */
+private final LongAdder evictions = new LongAdder();
+    /** connections reported as leaked */
+private final LongAdder leaks = new LongAdder();
 
 /** semaphore for safety */
 private  ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
@@ -99,6 +188,26 @@ private static HelperSinglton theHelperSingleton;
             dbcpLogger.error( "DBConnectionPool constructor failure", ex);
             throw new PibException("can't construct DBConnectionPool");
         }
+        prewarm();
+        startReaper();
+    }
+    /**
+     * construct the pool of a named datasource
+     * @param aName name of the datasource, the prefix of its properties
+     * @param props properties of the primary
+     * @throws SQLException if its driver can not be loaded
+     */
+    private DBConnectionPool(String aName, Properties props) throws SQLException {
+        name = aName;
+        configure(props);
+        try {
+            Class.forName(dbClass);
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("DB could not find driver class: " + dbClass + " for datasource " + name);
+        }
+        initialized = true;
+        prewarm();
+        startReaper();
     }
 /**
  * gets the singleton instance after initializing (or re-initializing it) from the input stream
@@ -111,6 +220,8 @@ public static DBConnectionPool getInstance(InputStream is) {
     if (! theHelperSingleton.theOne.initialized ) {
         theHelperSingleton.theOne.loadProperties(is);
         theHelperSingleton.theOne.initialized = true;
+        HelperSinglton.theOne.prewarm();
+        HelperSinglton.theOne.startReaper();
     }
     return theHelperSingleton.theOne;
 }
@@ -200,23 +311,146 @@ private void loadProperties(InputStream is) {
     Properties theProps = new Properties();
     try {
         if ( is  != null)  theProps.load(is);
-        dbClass  = theProps.getProperty("dbClass", "com.mysql.jdbc.Driver");
-        dbHost = theProps.getProperty("dbHost",  "localhost");
-        dbPort = theProps.getProperty("dbPort", "3306");
-        dbDatabase  = theProps.getProperty("dbDatabase");
-        dbUsername = theProps.getProperty("dbUser");
-        dbPasswd  = theProps.getProperty("dbPasswd");
-        //"jdbc:mysql://localhost:3306/foobaz, 
-        dbUrl = "jdbc:mysql://" + dbHost + ":" + dbPort + "/" + dbDatabase;
-        dbcpLogger.trace("using JDBC url of " + dbUrl);
-        sessionTimeZone = theProps.getProperty("timezone", "system");
     } catch (IOException ex) {
         dbcpLogger.error("IO error",  ex);
+        return;
+    }
+    configure(theProps);
+    setupDatasources(theProps);
+}
+/**
+ * fills in the settings of this datasource
+ * @param theProps the properties of the primary
+ */
+private void configure(Properties theProps) {
+    dbClass  = prop(theProps, "dbClass", "com.mysql.jdbc.Driver");
+    dbHost = prop(theProps, "dbHost",  "localhost");
+    dbPort = prop(theProps, "dbPort", "3306");
+    dbDatabase  = prop(theProps, "dbDatabase", null);
+    dbUsername = prop(theProps, "dbUser", null);
+    dbPasswd  = prop(theProps, "dbPasswd", null);
+    //"jdbc:mysql://localhost:3306/foobaz, 
+    List<String> urlOptions = new ArrayList<String>();
+    // dbRewriteBatches=true lets the driver send a whole JDBC batch, see AbstractPersistentObject.saveAll,
+    // in one round trip. Off unless asked for, it changes what the driver sends and returns.
+    if (Boolean.parseBoolean(prop(theProps, "dbRewriteBatches", "false"))) {
+        urlOptions.add("rewriteBatchedStatements=true");
+    }
+    // dbServerPrepare=true has the server parse a cached prepared statement once, see prepare().
+    // Off unless asked for, it holds a statement on the server for each cached one.
+    if (Boolean.parseBoolean(prop(theProps, "dbServerPrepare", "false"))) {
+        urlOptions.add("useServerPrepStmts=true");
+    }
+    dbUrl = "jdbc:mysql://" + dbHost + ":" + dbPort + "/" + dbDatabase;
+    for (int i = 0; i < urlOptions.size(); i++) {
+        dbUrl += (i == 0 ? "?" : "&") + urlOptions.get(i);
+    }
+    statementCacheSize = Integer.parseInt(prop(theProps, "dbStatementCacheSize",
+                    Integer.toString(StatementCache.DEFAULT_SIZE)));
+    poolMin = Integer.parseInt(prop(theProps, "poolMin", Integer.toString(DEFAULT_POOL_MIN)));
+    poolMax = Integer.parseInt(prop(theProps, "poolMax", Integer.toString(DEFAULT_POOL_MAX)));
+    poolTimeoutMillis = Long.parseLong(prop(theProps, "poolTimeoutMillis", Long.toString(DEFAULT_POOL_TIMEOUT)));
+    Preconditions.checkState(poolMax > 0 && poolMin >= 0 && poolMin <= poolMax,
+                    "pool sizes need 0 <= poolMin <= poolMax, poolMax > 0");
+    permits = new Semaphore(poolMax, true);
+    reaperInterval = Long.parseLong(prop(theProps, "poolReaperMillis", Long.toString(DEFAULT_REAPER_INTERVAL)));
+    leakThreshold = Long.parseLong(prop(theProps, "poolLeakMillis", Long.toString(DEFAULT_LEAK_THRESHOLD)));
+    leakTrace = Boolean.parseBoolean(prop(theProps, "poolLeakTrace", "false"));
+    validationQuery = prop(theProps, "poolValidationQuery", null);
+    validationTimeout = Integer.parseInt(prop(theProps, "poolValidationTimeout",
+                    Integer.toString(DEFAULT_VALIDATION_TIMEOUT)));
+    dbcpLogger.trace("using JDBC url of " + dbUrl + " for " + name);
+    sessionTimeZone = prop(theProps, "timezone", "system");
+}
+/**
+ * gets a setting of this datasource, the one prefixed with its name if there is one,
+ * else the primary's
+ */
+private String prop(Properties theProps, String key, String def) {
+    if (!PRIMARY.equals(name)) {
+        String rval = theProps.getProperty(name + "." + key);
+        if (rval != null) return rval;
+    }
+    return theProps.getProperty(key, def);
+}
+/**
+ * opens the pools of the named datasources, and picks the ones that serve reads
+ * @param theProps the properties of the primary
+ */
+private void setupDatasources(Properties theProps) {
+    List<String> readers = splitNames(theProps.getProperty("dbReadReplicas"));
+    Set<String> names = new LinkedHashSet<String>(splitNames(theProps.getProperty("dbDatasources")));
+    names.addAll(readers);
+    for (String n : names) {
+        if (PRIMARY.equals(n) || named.containsKey(n)) continue;
+        try {
+            named.put(n, new DBConnectionPool(n, theProps));
+        } catch (SQLException ex) {
+            dbcpLogger.error("can't set up datasource " + n, ex);
+        }
+    }
+    List<DBConnectionPool> list = new ArrayList<DBConnectionPool>();
+    for (String n : names) {
+        if (named.containsKey(n)) list.add(named.get(n));
+    }
+    others = list.toArray(new DBConnectionPool[list.size()]);
+    List<DBConnectionPool> reps = new ArrayList<DBConnectionPool>();
+    for (String n : readers) {
+        DBConnectionPool dbP = PRIMARY.equals(n) ? this : named.get(n);
+        if (dbP != null) reps.add(dbP);
     }
+    replicas = reps.toArray(new DBConnectionPool[reps.size()]);
+    leastLoaded = "leastloaded".equalsIgnoreCase(theProps.getProperty("dbReadRouting", "roundrobin"));
+}
+private static List<String> splitNames(String arg) {
+    List<String> rval = new ArrayList<String>();
+    if (arg == null) return rval;
+    for (String s : arg.split(",")) {
+        if (!s.trim().isEmpty()) rval.add(s.trim());
+    }
+    return rval;
 }
 private static DBConnectionPool getInstance() {
     return theHelperSingleton.theOne;
 }
+/**
+ * gets the pool of a datasource
+ * @param dsName name of the datasource
+ * @return its pool
+ * @throws IllegalArgumentException if there is no such datasource
+ */
+private static DBConnectionPool getInstance(String dsName) {
+    DBConnectionPool rval = getInstance();
+    if (PRIMARY.equals(dsName)) return rval;
+    rval = named.get(dsName);
+    Preconditions.checkArgument(rval != null, "no datasource named %s", dsName);
+    return rval;
+}
+/**
+ * @return names of the datasources, the primary first
+ */
+public static List<String> getDatasourceNames() {
+    getInstance();
+    List<String> rval = new ArrayList<String>();
+    rval.add(PRIMARY);
+    for (DBConnectionPool dbP : others) {
+        rval.add(dbP.name);
+    }
+    return rval;
+}
+/**
+ * @return true if reads go to replicas
+ */
+public static boolean hasReadReplicas() {
+    getInstance();
+    return replicas.length > 0;
+}
+/**
+ * @return number of reads sent to the primary because no replica could give a connection
+ */
+public static long getReplicaFallbackCount() {
+    return replicaFallbacks.sum();
+}
 /**  only for testing */
 public static String getUsername() {
     return getInstance().dbUsername;
@@ -250,10 +484,93 @@ public static String getSessionTimeZone() {
  * @return returns the size of the connection pool
  */
 public static int getPoolSize() {
-    return getInstance().poolConnections.size();
+    return getInstance().countIn(Pooled.IDLE);
 }
+/**
+ * @return number of connections handed out
+ */
 public static int getOpenSize() {
-    return getInstance().openConnections.size();
+    return getInstance().countIn(Pooled.IN_USE);
+}
+/**
+ * @return number of connections opened at startup
+ */
+public static int getPoolMin() {
+    return getInstance().poolMin;
+}
+/**
+ * @return most connections open at once
+ */
+public static int getPoolMax() {
+    return getInstance().poolMax;
+}
+/**
+ * @return number of callers waiting for a connection
+ */
+public static int getWaitingCount() {
+    return getInstance().permits.getQueueLength();
+}
+/**
+ * @return number of callers that gave up waiting for a connection
+ */
+public static long getTimeoutCount() {
+    return getInstance().timeouts.sum();
+}
+/**
+ * @return number of idle connections the reaper found dead or too old, and closed
+ */
+public static long getEvictionCount() {
+    return getInstance().evictions.sum();
+}
+/**
+ * @return number of connections reported as leaked
+ */
+public static long getLeakCount() {
+    return getInstance().leaks.sum();
+}
+/**
+ * stops the background reaper, the pool still works without it
+ */
+public static void stopReaper() {
+    getInstance().stopReaperInternal();
+    for (DBConnectionPool dbP : others) {
+        dbP.stopReaperInternal();
+    }
+}
+private synchronized void stopReaperInternal() {
+    if (reaper != null) {
+        reaper.shutdownNow();
+        reaper = null;
+    }
+}
+/**
+ * gets a PreparedStatement for the SQL from the cache of the connection, preparing it the first
+ * time. The statement stays open when the connection goes back to the pool, and is reused by
+ * the next caller with the same SQL, so it must not be closed, only its ResultSet.
+ * @param c a connection from {@link #getConnection()}
+ * @param sql SQL text with ? for the parameters, the cache key, so do not build values into it
+ * @return the statement, with its parameters cleared
+ * @throws SQLException pass up any Sql problems
+ */
+public static PreparedStatement prepare(Connection c, String sql) throws SQLException {
+    Preconditions.checkNotNull(c);
+    Preconditions.checkNotNull(sql);
+    DBConnectionPool dbP = ownerOf(c);
+    Pooled p = dbP.all.get(c);
+    Preconditions.checkArgument(p != null, "not a connection of the pool");
+    return p.statements(dbP.statementCacheSize).prepare(c, sql);
+}
+/**
+ * @return number of prepared statements reused from the connection caches
+ */
+public static long getStatementCacheHits() {
+    return StatementCache.getHits();
+}
+/**
+ * @return number of prepared statements that were not cached and had to be prepared
+ */
+public static long getStatementCacheMisses() {
+    return StatementCache.getMisses();
 }
 /**
  * get a connection from the pool
@@ -266,6 +583,76 @@ public static Connection getConnection() throws SQLException  {
     Connection rval = dbP.getConnectionInternal();
     return rval;
 }
+/**
+ * get a connection from the pool of a named datasource
+ * @param dsName name of the datasource, see {@link #getDatasourceNames()}
+ * @throws SQLException pass up any Sql problems
+ * @return a JDBC connection, give it back with {@link #returnCon(Connection)}
+ */
+public static Connection getConnection(String dsName) throws SQLException  {
+    Preconditions.checkNotNull(dsName);
+    return getInstance(dsName).getConnectionInternal();
+}
+/**
+ * get a connection for queries that may read slightly old data, from a read replica if there
+ * are any, else from the primary. A replica that has no connection to give is passed over
+ * for the primary. Nothing may be written on it.
+ * @throws SQLException pass up any Sql problems
+ * @return a JDBC connection, give it back with {@link #returnCon(Connection)}
+ */
+public static Connection getReadConnection() throws SQLException  {
+    DBConnectionPool primary = getInstance();
+    DBConnectionPool[] reps = replicas;
+    if (reps.length == 0) return primary.getConnectionInternal();
+    DBConnectionPool dbP = pickReplica(reps);
+    if (dbP != primary) {
+        try {
+            return dbP.getConnectionInternal();
+        } catch (SQLException ex) {
+            replicaFallbacks.increment();
+            dbcpLogger.warn("replica " + dbP.name + " gave no connection, reading from the primary", ex);
+        }
+    }
+    return primary.getConnectionInternal();
+}
+/**
+ * picks the replica for the next read, in turn, or the one with fewest connections out,
+ * starting the search in turn so ties are spread
+ */
+private static DBConnectionPool pickReplica(DBConnectionPool[] reps) {
+    if (reps.length == 1) return reps[0];
+    int start = (nextReplica.getAndIncrement() & Integer.MAX_VALUE) % reps.length;
+    DBConnectionPool rval = reps[start];
+    if (!leastLoaded) return rval;
+    int fewest = rval.inUse();
+    for (int i = 1; i < reps.length && fewest > 0; i++) {
+        DBConnectionPool dbP = reps[(start + i) % reps.length];
+        int n = dbP.inUse();
+        if (n < fewest) {
+            rval = dbP;
+            fewest = n;
+        }
+    }
+    return rval;
+}
+/**
+ * @return number of connections out, or being waited for
+ */
+private int inUse() {
+    return poolMax - permits.availablePermits() + permits.getQueueLength();
+}
+/**
+ * finds the pool a connection came from
+ * @return its pool, the primary if it is not from any
+ */
+private static DBConnectionPool ownerOf(Connection c) {
+    DBConnectionPool rval = getInstance();
+    if (c == null || rval.all.containsKey(c)) return rval;
+    for (DBConnectionPool dbP : others) {
+        if (dbP.all.containsKey(c)) return dbP;
+    }
+    return rval;
+}
 /**
  * release connection to the pool
  * @param c the Connection
@@ -279,64 +666,218 @@ public static void returnCon(Connection c) {
  * @param except exception that triggered this closure.
  */    
 public static void returnCon(Connection c, Exception except) {
-    getInstance().returnConInternal(c, except);
+    ownerOf(c).returnConInternal(c, except);
 }
     /**
      * return connection to the pool
      * @param c the connection
      * @param except pass up any problems
      */
-    @SuppressWarnings("static-access")
 private void internalReturn(Connection c, Exception except) {
     if (getInstance() == null) {
         String msg = "PIB, returning connection before using them";
         dbcpLogger.error(msg);
         throw new PibException(msg);
     }
-    DBConnectionPool dbP = theHelperSingleton.theOne;
-    dbP.returnConInternal(c, except);
+    ownerOf(c).returnConInternal(c, except);
 }
 
+/**
+ * opens connections, idle, until poolMin are open, so the first callers do not wait for them
+ */
+private void prewarm() {
+    int opened = 0;
+    try {
+        while (countIn(Pooled.IDLE) + countIn(Pooled.IN_USE) < poolMin) {
+            Pooled p = new Pooled(openConnection(), Pooled.IDLE);
+            all.put(p.con, p);
+            makeIdle(p);
+            opened++;
+        }
+    } catch (SQLException ex) {
+        dbcpLogger.warn("could only open " + opened + " more connections toward the minimum of " + poolMin, ex);
+    }
+}
+/**
+ * @return number of pooled connections in the argument state
+ */
+private int countIn(int state) {
+    int rval = 0;
+    for (Pooled p : all.values()) {
+        if (p.state.get() == state) rval++;
+    }
+    return rval;
+}
+/**
+ * starts the reaper, if it is on and not running
+ */
+private synchronized void startReaper() {
+    if (reaperInterval <= 0L || reaper != null) return;
+    reaper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread rval = new Thread(r, PRIMARY.equals(name) ? "dbPoolReaper" : "dbPoolReaper-" + name);
+                rval.setDaemon(true);
+                return rval;
+            }
+        });
+    reaper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    reap();
+                } catch (RuntimeException ex) {
+                    dbcpLogger.error("connection pool reaper failed", ex);
+                }
+            }
+        }, reaperInterval, reaperInterval, TimeUnit.MILLISECONDS);
+}
+/**
+ * one pass of the background maintenance: checks the idle connections one at a time, closing
+ * the dead and the stale, opens connections up to the minimum, and reports leaks
+ */
+void reap() {
+    for (Pooled p : all.values()) {
+        if (!p.state.compareAndSet(Pooled.IDLE, Pooled.RESERVED)) continue;
+        if (System.currentTimeMillis() - p.lastUsed < MaxUnusedTime && isHealthy(p.con)) {
+            makeIdle(p);
+        } else {
+            evictions.increment();
+            retire(p);
+        }
+    }
+    prewarm();
+    reportLeaks();
+}
+/**
+ * checks an idle connection with the validation query, or Connection.isValid
+ * @param con the connection
+ * @return true if it answered in time
+ */
+private boolean isHealthy(Connection con) {
+    try {
+        if (con.isClosed()) return false;
+        if (validationQuery == null) {
+            return con.isValid(validationTimeout);
+        }
+        Statement s = con.createStatement();
+        try {
+            s.setQueryTimeout(validationTimeout);
+            s.executeQuery(validationQuery).close();
+        } finally {
+            s.close();
+        }
+        return true;
+    } catch (SQLException ex) {
+        dbcpLogger.debug("idle connection failed validation", ex);
+        return false;
+    }
+}
+/**
+ * logs each connection that has been out longer than the leak threshold, once
+ */
+private void reportLeaks() {
+    if (leakThreshold <= 0L) return;
+    long now = System.currentTimeMillis();
+    for (Pooled p : all.values()) {
+        long acquired = p.acquired;
+        if (p.state.get() != Pooled.IN_USE || p.reported || now - acquired <= leakThreshold) continue;
+        p.reported = true;
+        leaks.increment();
+        String msg = String.format("connection taken by %s has been out for %d seconds, probably leaked",
+                        p.holder, TimeUnit.MILLISECONDS.toSeconds(now - acquired));
+        Throwable where = p.where;
+        if (where != null) {
+            dbcpLogger.warn(msg, where);
+        } else {
+            dbcpLogger.warn(msg + ", set poolLeakTrace=true for the stack");
+        }
+    }
+}
+/**
+ * opens a new connection to the database
+ * @return the connection
+ * @throws SQLException pass up any Sql problems
+ */
+private Connection openConnection() throws SQLException {
+    return DriverManager.getConnection(dbUrl, dbUsername, dbPasswd);
+}
  /**
- * get a connection from the pool
+ * get a connection from the pool, waiting up to the pool timeout when poolMax connections
+ * are already out. Tries the connection this thread used last, then the most recently
+ * returned one, then opens a new one. Takes no lock.
  * @throws SQLException pass up any Sql problems
+ * @throws SQLTransientConnectionException if no connection came free in time
  * @return a JDBC connection
  */    
 private Connection getConnectionInternal() throws SQLException {
-    Connection con = null;
-    lock.writeLock().lock();
-    try {
-        if (poolConnections.size() > 0) {
-            Iterator<Connection> iter = poolConnections.keySet().iterator();
-            Connection tmpcon = iter.next();
-            if (tmpcon.isClosed()) {
-                dbcpLogger.error("getCon:con from pool is closed");
-            }
-            Date lastUsed = poolConnections.remove(tmpcon);
-            Date now = new Date();
-            long delta = now.getTime() - lastUsed.getTime();
-            if (delta < MaxUnusedTime) {
-                con = tmpcon;
-            } else {
-                if (! tmpcon.isClosed()) {
-                    tmpcon.close();
-                }
-            }
+    boolean permitted = permits.tryAcquire();
+    if (!permitted) {
+        try {
+            permitted = permits.tryAcquire(poolTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("interrupted waiting for a database connection");
         }
-        if (con == null) {
-            con = DriverManager.getConnection(getInstance().dbUrl,
-                    getInstance().dbUsername, getInstance().dbPasswd);
+    }
+    if (!permitted) {
+        timeouts.increment();
+        throw new SQLTransientConnectionException(String.format("no database connection free after %d ms, %d in use",
+                        poolTimeoutMillis, countIn(Pooled.IN_USE)));
+    }
+    Pooled p = null;
+    try {
+        p = takeIdle();
+        if (p == null) {
+            p = new Pooled(openConnection(), Pooled.IN_USE);
+            all.put(p.con, p);
         }
-        Date now = new Date();
-        openConnections.put(con, now);
-        
+        p.lend(leakTrace);
     } catch (MySQLNonTransientConnectionException ex) {
         dbcpLogger.error("probably out of connections", ex);
         throw ex;
     } finally {
-        lock.writeLock().unlock();
+        if (p == null) permits.release();
+    }
+    return p.con;
+}
+/**
+ * claims a usable idle connection, this thread's last one if it is free, closing any that
+ * have been idle too long
+ * @return the claimed connection, or null if there is none
+ */
+private Pooled takeIdle() {
+    long now = System.currentTimeMillis();
+    Pooled p = affinity.get();
+    if (p != null && p.state.compareAndSet(Pooled.IDLE, Pooled.IN_USE)) {
+        if (now - p.lastUsed < MaxUnusedTime) return p;
+        retire(p);
+    }
+    while ((p = idle.pollFirst()) != null) {
+        p.queued.set(false);
+        if (!p.state.compareAndSet(Pooled.IDLE, Pooled.IN_USE)) continue;   // taken by its last thread
+        if (now - p.lastUsed < MaxUnusedTime) return p;
+        retire(p);
+    }
+    return null;
+}
+/**
+ * marks a claimed connection idle, and puts it on top of the idle stack unless it is still there
+ */
+private void makeIdle(Pooled p) {
+    p.state.set(Pooled.IDLE);
+    if (p.queued.compareAndSet(false, true)) idle.offerFirst(p);
+}
+/**
+ * closes a claimed connection and forgets it
+ */
+private void retire(Pooled p) {
+    p.state.set(Pooled.CLOSED);
+    all.remove(p.con);
+    p.dropStatements();
+    try {
+        p.con.close();
+    } catch (SQLException ex) {
+        dbcpLogger.debug("closing retired connection", ex);
     }
-    return con;
 }
 
 /**
@@ -344,35 +885,87 @@ private Connection getConnectionInternal() throws SQLException {
  * @param c the Connection
  * @param except exception that triggered this closure.
  */
-    @SuppressWarnings("empty-statement")
 private void returnConInternal(Connection c, Exception except)  {
     if (c == null) return;
-    lock.writeLock().lock();
-    try {
-        Date oldVal = openConnections.remove(c);
-        if (except == null) {
-            try {
-                if ( c.isClosed())  {
-                    dbcpLogger.error("retCon:con to pool is closed");
-                } else {
-                    c.clearWarnings();
-                    poolConnections.put(c, new Date());
-                }
-            } catch (Exception e) {
-                try { 
-                    c.close(); 
-                } catch (Exception ee) {
-                    dbcpLogger.fatal("error in nexted close of returnCon", e);
-                }
+    Pooled p = all.get(c);
+    if (p == null || !p.state.compareAndSet(Pooled.IN_USE, Pooled.RESERVED)) {
+        dbcpLogger.error("retCon:connection returned twice, or not from this pool");
+        return;
+    }
+    boolean healthy = except == null;
+    if (healthy) {
+        try {
+            if ( c.isClosed())  {
+                dbcpLogger.error("retCon:con to pool is closed");
+                healthy = false;
+            } else {
+                c.clearWarnings();
             }
-        } else {
-            // leave it removed
+        } catch (Exception e) {
+            dbcpLogger.error("retCon:con failed on return", e);
+            healthy = false;
         }
-    } finally {
-        lock.writeLock().unlock();
     }
+    p.where = null;
+    if (healthy) {
+        p.lastUsed = System.currentTimeMillis();
+        makeIdle(p);
+        affinity.set(p);
+    } else {
+        retire(p);
+    }
+    permits.release();
 }
 
+/**
+ * a connection of the pool, with its state and primitive timestamps. IDLE entries are on the
+ * idle stack, but the stack may also hold entries already claimed through the thread affinity,
+ * which a poll just skips.
+ */
+private static final class Pooled {
+    static final int IDLE = 0;
+    static final int IN_USE = 1;
+    /** claimed by the pool itself, being checked or returned */
+    static final int RESERVED = 2;
+    static final int CLOSED = 3;
+
+    final Connection con;
+    final AtomicInteger state;
+    /** on the idle stack */
+    final AtomicBoolean queued = new AtomicBoolean(false);
+    /** when it was last returned */
+    volatile long lastUsed = System.currentTimeMillis();
+    /** when it was last taken */
+    volatile long acquired;
+    /** name of the thread that took it */
+    volatile String holder;
+    /** where it was taken, or null if not kept */
+    volatile Throwable where;
+    /** already reported as leaked */
+    volatile boolean reported;
+    /** prepared statements, they live as long as the connection */
+    private StatementCache statements;
+
+    Pooled(Connection aCon, int aState) {
+        con = aCon;
+        state = new AtomicInteger(aState);
+    }
+    /** records the taking of the connection, for the leak reports */
+    void lend(boolean trace) {
+        acquired = System.currentTimeMillis();
+        holder = Thread.currentThread().getName();
+        reported = false;
+        where = trace ? new Throwable("connection taken here") : null;
+    }
+    synchronized StatementCache statements(int size) {
+        if (statements == null) statements = new StatementCache(size);
+        return statements;
+    }
+    synchronized void dropStatements() {
+        if (statements != null) statements.close();
+        statements = null;
+    }
+}
 /** class to ensure that the connection is created without Double-checked locking problems */
     static class HelperSinglton {
         /** the one and only */
@@ -21,6 +21,7 @@ import com.pfarrell.busobj.AbstractPersistentBusinessObject;
 import com.pfarrell.exceptions.PibException;
 import com.pfarrell.utils.misc.TimeUtils;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -48,7 +49,7 @@ protected static final Logger dbLog = Logger.getLogger(DBUtil.class);
      */
     public static ArrayList<Long> getPrimaryKeysFromQuery(String query) throws SQLException {
         ArrayList<Long> rval = new ArrayList<Long>();
-        Connection myCon = DBConnectionPool.getConnection();
+        Connection myCon = DBConnectionPool.getReadConnection();
         Statement  s = myCon.createStatement();
         if (dbLog != null) {
             dbLog.info(query);
@@ -66,6 +67,77 @@ protected static final Logger dbLog = Logger.getLogger(DBUtil.class);
         DBConnectionPool.returnCon(myCon);
         return rval;
     }
+    /**
+     * does a parameterized query that returns one column of primary keys, using the
+     * prepared statement cache of the connection
+     * @param query SQL string with ? for each parameter, that will yield one column of integers
+     * @param params values for the parameters, in order
+     * @return ArrayList<Long> of longs returned.
+     * @throws SQLException pass up any SQL problems
+     */
+    public static ArrayList<Long> getPrimaryKeysFromQuery(String query, Object... params) throws SQLException {
+        Preconditions.checkNotNull(query);
+        ArrayList<Long> rval = new ArrayList<Long>();
+        Connection myCon = DBConnectionPool.getReadConnection();
+        ResultSet rs = null;
+        SQLException problem = null;
+        try {
+            PreparedStatement ps = DBConnectionPool.prepare(myCon, query);
+            bind(ps, params);
+            dbLog.info(query);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                rval.add(rs.getLong(1));
+            }
+        } catch (SQLException sqe) {
+            problem = sqe;
+            throw sqe;
+        } finally {
+            try {
+                if (rs != null) rs.close();
+            } finally {
+                DBConnectionPool.returnCon(myCon, problem);
+            }
+        }
+        return rval;
+    }
+    /**
+     * performs a parameterized insert, update or delete, using the prepared statement cache
+     * of the connection
+     * @param command SQL with ? for each parameter
+     * @param params values for the parameters, in order
+     * @return number of rows changed
+     * @throws SQLException pass up any Sql problems
+     */
+    public static int executeUpdate(String command, Object... params) throws SQLException {
+        Preconditions.checkNotNull(command);
+        Connection myCon = DBConnectionPool.getConnection();
+        SQLException problem = null;
+        try {
+            PreparedStatement ps = DBConnectionPool.prepare(myCon, command);
+            bind(ps, params);
+            dbLog.debug(command);
+            return ps.executeUpdate();
+        } catch (SQLException sqe) {
+            problem = sqe;
+            throw sqe;
+        } finally {
+            DBConnectionPool.returnCon(myCon, problem);
+        }
+    }
+    /**
+     * sets the parameters of a prepared statement, in order, a null sets SQL NULL
+     * @param ps the statement
+     * @param params the values
+     * @throws SQLException pass up any Sql problems
+     */
+    public static void bind(PreparedStatement ps, Object... params) throws SQLException {
+        Preconditions.checkNotNull(ps);
+        if (params == null) return;
+        for (int i = 0; i < params.length; i++) {
+            ps.setObject(i + 1, params[i]);
+        }
+    }
     /**
      * gets the count of records in the table for the argument class
      * @param boc class of a AbstractPersistentBusinessObject
@@ -91,7 +163,7 @@ protected static final Logger dbLog = Logger.getLogger(DBUtil.class);
         try {
             AbstractPersistentBusinessObject asCast = (AbstractPersistentBusinessObject) boc.cast(boc.newInstance());
             String query = "select count(*) from " +  asCast.getTable() + (where != null && ! where.isEmpty() ? where : "");
-            Connection myCon = DBConnectionPool.getConnection();
+            Connection myCon = DBConnectionPool.getReadConnection();
             Statement  s = myCon.createStatement();
             Logger.getLogger(DBUtil.class).info(query);
 
@@ -135,7 +207,7 @@ protected static final Logger dbLog = Logger.getLogger(DBUtil.class);
         rval = new ArrayList<Integer>();
         String primeKey = asCast.getIdFieldName();
         String query = "select " + primeKey + " from " + asCast.getTable();
-        Connection myCon = DBConnectionPool.getConnection();
+        Connection myCon = DBConnectionPool.getReadConnection();
         Statement  s = myCon.createStatement();
         dbLog.info(query);
 
@@ -214,7 +286,7 @@ public static List<Pair<String, Integer>> getDistinctStringsAndCountFromClass(St
     String query = "select distinct(" + fieldname + "), count(*) v from "
             + asCast.getTable() + " " + wherePart
             + " group by " + fieldname + "  order by v desc";
-    Connection myCon = DBConnectionPool.getConnection();
+    Connection myCon = DBConnectionPool.getReadConnection();
     Statement  s = myCon.createStatement();
     dbLog.debug(query);
 
@@ -297,7 +369,7 @@ public static List<Pair<Long, Integer>>
     Preconditions.checkNotNull(query);
     Preconditions.checkNotNull(boc);
     ArrayList<Pair<Long, Integer>> rval = new ArrayList<Pair<Long, Integer>>();
-    Connection myCon = DBConnectionPool.getConnection();
+    Connection myCon = DBConnectionPool.getReadConnection();
     Statement  s = myCon.createStatement();
     dbLog.debug(query);
 
@@ -326,7 +398,7 @@ public static List<Pair<Long, Integer>>
      */
 public static List<String> getStringsFromQuery(String query) throws SQLException {
     ArrayList<String> rval = new ArrayList<String>();
-    Connection myCon = DBConnectionPool.getConnection();
+    Connection myCon = DBConnectionPool.getReadConnection();
     Statement  s = myCon.createStatement();
     Logger.getLogger(DBUtil.class).info(query);
 
@@ -351,7 +423,7 @@ public static List<String> getStringsFromQuery(String query) throws SQLException
      */ 
 public static List<Pair<String,String>> getStringPairsFromQuery(String query) throws SQLException {
     List<Pair<String,String>> rval = new ArrayList<Pair<String,String>>();
-    Connection myCon = DBConnectionPool.getConnection();
+    Connection myCon = DBConnectionPool.getReadConnection();
     Statement  s = myCon.createStatement();
     Logger.getLogger(DBUtil.class).info(query);
 
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.utils.database;
+
+import com.google.common.base.Preconditions;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.log4j.Logger;
+
+/**
+ * The <code>StatementCache</code> class keeps the most recently used PreparedStatements of one
+ * pooled connection, keyed by their SQL text, so a statement is parsed once per connection
+ * rather than once per use. The least recently used statement is closed when the cache is full,
+ * and all of them when the connection leaves the pool.
+ * <p>
+ * A connection is only used by one thread at a time, the lock here only guards against the
+ * pool closing the cache while the connection is still out.
+ *
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+final class StatementCache {
+    /** logger instance */
+private static final Logger scLog = Logger.getLogger(StatementCache.class);
+/** default most statements kept per connection */
+static final int DEFAULT_SIZE = 64;
+
+private static final LongAdder hits = new LongAdder();
+private static final LongAdder misses = new LongAdder();
+private static final LongAdder evictions = new LongAdder();
+
+private final int capacity;
+private final LinkedHashMap<String, PreparedStatement> statements;
+private boolean closed = false;
+
+/**
+ * constructor
+ * @param aCapacity most statements to keep
+ */
+StatementCache(int aCapacity) {
+    Preconditions.checkArgument(aCapacity > 0, "statement cache size must be positive");
+    capacity = aCapacity;
+    statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+}
+/**
+ * gets the statement for the SQL, preparing it on the connection if it is not here
+ * @param con the connection this cache belongs to
+ * @param sql SQL text, with ? for the parameters
+ * @return the statement, parameters and batch cleared, must not be closed by the caller
+ * @throws SQLException pass up any Sql problems
+ */
+synchronized PreparedStatement prepare(Connection con, String sql) throws SQLException {
+    Preconditions.checkState(!closed, "statement cache of a closed connection");
+    PreparedStatement rval = statements.get(sql);
+    if (rval != null) {
+        hits.increment();
+        rval.clearParameters();
+        rval.clearBatch();
+        return rval;
+    }
+    misses.increment();
+    rval = con.prepareStatement(sql);
+    statements.put(sql, rval);
+    if (statements.size() > capacity) {
+        Iterator<Map.Entry<String, PreparedStatement>> eldest = statements.entrySet().iterator();
+        PreparedStatement victim = eldest.next().getValue();
+        eldest.remove();
+        evictions.increment();
+        closeQuietly(victim);
+    }
+    return rval;
+}
+/**
+ * closes every statement, the cache can not be used after this
+ */
+synchronized void close() {
+    closed = true;
+    for (PreparedStatement ps : statements.values()) {
+        closeQuietly(ps);
+    }
+    statements.clear();
+}
+/**
+ * @return number of statements held
+ */
+synchronized int size() {
+    return statements.size();
+}
+private static void closeQuietly(PreparedStatement ps) {
+    try {
+        ps.close();
+    } catch (SQLException ex) {
+        scLog.debug("closing cached statement", ex);
+    }
+}
+/**
+ * @return number of statements found in a cache, over all connections
+ */
+static long getHits() {
+    return hits.sum();
+}
+/**
+ * @return number of statements that had to be prepared, over all connections
+ */
+static long getMisses() {
+    return misses.sum();
+}
+/**
+ * @return number of statements closed to make room, over all connections
+ */
+static long getEvictions() {
+    return evictions.sum();
+}
+}
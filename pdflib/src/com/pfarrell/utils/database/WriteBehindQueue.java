@@ -0,0 +1,457 @@
+/*
+ * Copyright (C) 2026 Patrick Farrell. All Rights reserved.
+ */
+
+package com.pfarrell.utils.database;
+
+import com.google.common.base.Preconditions;
+import com.pfarrell.busobj.Cacheable;
+import com.pfarrell.busobj.UsePreparedStatement;
+import com.pfarrell.cache.CacheFactory;
+import com.pfarrell.cache.InvalidationBus;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+
+/**
+ * The <code>WriteBehindQueue</code> class lets {@link AbstractPersistentObject#save()} of an
+ * existing row return at once, and writes the row later on a background thread. Saves of the
+ * same object between two flushes are coalesced into one update, so objects that change all the
+ * time, counters and last seen times, cost one write per flush rather than one per change.
+ * <p>
+ * It is opt-in, per class, with {@link #enable(Class)}. Only updates are deferred, an insert
+ * still runs at once, as its caller needs the generated key. A queued object is marked dirty,
+ * and put in its cache straight away, so readers on this node see the new values. Other nodes
+ * are told of the change by the {@link InvalidationBus} once the row is written.
+ * <p>
+ * The queue is flushed every {@link #getFlushInterval()} milliseconds, or as soon as
+ * {@link #getMaxBatch()} objects are waiting, as JDBC batches, see
+ * {@link AbstractPersistentObject#saveAll}. A batch that fails is retried one row at a time,
+ * so a bad row does not lose the others. A row that still fails goes back in the queue, unless
+ * a newer save of it is already waiting, and is tried again by the next flushes, up to
+ * {@link #getMaxAttempts()} times before it is dropped. {@link #shutdown()}, which
+ * {@link com.pfarrell.cache.CacheFactory#closeAllThreads} calls, and a JVM shutdown hook both
+ * write whatever is still waiting.
+ * <p>
+ * The row is written from the object as it is at the flush, not at the save.
+ * {@link AbstractPersistentObject#delete()} takes a waiting row out of the queue first, so a
+ * deleted row is never written back.
+ *
+ * @author pfarrell
+ * Created on Oct 17, 2026
+ */
+public final class WriteBehindQueue {
+    /** logger instance */
+private static final Logger wbLog = Logger.getLogger(WriteBehindQueue.class);
+/** default time between flushes, in milliseconds */
+public static final long DEFAULT_FLUSH_INTERVAL = 1000L;
+/** default number of waiting objects that starts a flush at once */
+public static final int DEFAULT_MAX_BATCH = 500;
+/** default number of flushes that try to write a row before it is dropped */
+public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+private static final Set<Class<?>> enabled = ConcurrentHashMap.newKeySet();
+private static volatile long flushInterval = DEFAULT_FLUSH_INTERVAL;
+private static volatile int maxBatch = DEFAULT_MAX_BATCH;
+private static volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+/** objects waiting to be written, by class then id, guarded by lock */
+private static final Map<Class<?>, LinkedHashMap<Long, AbstractPersistentObject<?>>> pending =
+                new LinkedHashMap<Class<?>, LinkedHashMap<Long, AbstractPersistentObject<?>>>();
+private static int pendingCount;
+private static ScheduledThreadPoolExecutor executor;
+private static ScheduledFuture<?> flushTask;
+/** a flush has been handed to the executor and has not started yet */
+private static boolean flushQueued = false;
+/** failed writes of objects still waiting, guarded by lock */
+private static final Map<AbstractPersistentObject<?>, Integer> attempts =
+                new IdentityHashMap<AbstractPersistentObject<?>, Integer>();
+private static boolean hookAdded = false;
+private static final ReentrantLock lock = new ReentrantLock();
+/** one flush at a time, so an older write never lands after a newer one */
+private static final ReentrantLock flushLock = new ReentrantLock();
+
+private static final LongAdder queued = new LongAdder();
+private static final LongAdder coalesced = new LongAdder();
+private static final LongAdder written = new LongAdder();
+private static final LongAdder flushes = new LongAdder();
+private static final LongAdder failures = new LongAdder();
+private static final LongAdder retries = new LongAdder();
+
+private static final Runnable flusher = new Runnable() {
+        public void run() {
+            try {
+                flush();
+            } catch (RuntimeException ex) {
+                wbLog.error("write behind flush failed", ex);
+            }
+        }
+    };
+
+private WriteBehindQueue() {
+}
+/**
+ * defers the updates of the argument class from now on
+ * @param clz the class, must not use prepared statements
+ */
+public static void enable(Class<? extends AbstractPersistentObject<?>> clz) {
+    Preconditions.checkNotNull(clz);
+    Preconditions.checkArgument(!UsePreparedStatement.class.isAssignableFrom(clz),
+                    "write behind needs getSaveCommandString(), not a prepared statement");
+    lock.lock();
+    try {
+        enabled.add(clz);
+        if (!hookAdded) {
+            Runtime.getRuntime().addShutdownHook(new Thread(flusher, "writeBehindShutdown"));
+            CacheFactory.addCloseTask(new Runnable() {
+                    public void run() {
+                        shutdown();
+                    }
+                });
+            hookAdded = true;
+        }
+    } finally {
+        lock.unlock();
+    }
+}
+/**
+ * goes back to writing the updates of the argument class at once. Already queued objects are
+ * still written by the next flush.
+ * @param clz the class
+ */
+public static void disable(Class<? extends AbstractPersistentObject<?>> clz) {
+    enabled.remove(clz);
+}
+/**
+ * @param clz a class
+ * @return true if updates of the class are deferred
+ */
+public static boolean isEnabled(Class<?> clz) {
+    return enabled.contains(clz);
+}
+/**
+ * sets the time between flushes, takes effect after the next flush
+ * @param duration the interval
+ * @param unit unit of the interval
+ */
+public static void setFlushInterval(long duration, TimeUnit unit) {
+    Preconditions.checkNotNull(unit);
+    Preconditions.checkArgument(duration > 0L);
+    flushInterval = unit.toMillis(duration);
+}
+/**
+ * @return time between flushes, in milliseconds
+ */
+public static long getFlushInterval() {
+    return flushInterval;
+}
+/**
+ * sets how many waiting objects start a flush at once
+ * @param arg number of objects
+ */
+public static void setMaxBatch(int arg) {
+    Preconditions.checkArgument(arg > 0);
+    maxBatch = arg;
+}
+/**
+ * @return number of waiting objects that starts a flush
+ */
+public static int getMaxBatch() {
+    return maxBatch;
+}
+/**
+ * sets how many flushes try to write a row before it is dropped
+ * @param arg number of attempts
+ */
+public static void setMaxAttempts(int arg) {
+    Preconditions.checkArgument(arg > 0);
+    maxAttempts = arg;
+}
+/**
+ * @return number of flushes that try to write a row before it is dropped
+ */
+public static int getMaxAttempts() {
+    return maxAttempts;
+}
+/**
+ * queues the argument for writing, replacing any waiting copy of the same row
+ * @param obj a saved object of an enabled class
+ */
+@SuppressWarnings("unchecked")
+static void enqueue(AbstractPersistentObject<?> obj) {
+    Preconditions.checkNotNull(obj);
+    Preconditions.checkState(obj.isFromDatabase(), "only updates can be written behind");
+    obj.setDirtyFlag();
+    ScheduledThreadPoolExecutor flushNow = null;
+    lock.lock();
+    try {
+        LinkedHashMap<Long, AbstractPersistentObject<?>> rows = pending.get(obj.getClass());
+        if (rows == null) {
+            rows = new LinkedHashMap<Long, AbstractPersistentObject<?>>();
+            pending.put(obj.getClass(), rows);
+        }
+        if (rows.put(Long.valueOf(obj.getId()), obj) == null) {
+            pendingCount++;
+        } else {
+            coalesced.increment();
+        }
+        queued.increment();
+        if (pendingCount >= maxBatch) {
+            if (!flushQueued) {
+                flushQueued = true;
+                flushNow = getExecutor();
+            }
+        } else if (flushTask == null) {
+            flushTask = getExecutor().schedule(flusher, flushInterval, TimeUnit.MILLISECONDS);
+        }
+    } finally {
+        lock.unlock();
+    }
+    if (obj instanceof Cacheable) {
+        ((Cacheable) obj).storeThisInCache();
+    }
+    if (flushNow != null) {
+        try {
+            flushNow.execute(flusher);
+        } catch (RejectedExecutionException ex) {
+            flush();
+        }
+    }
+}
+/**
+ * takes the waiting copy of the argument's row out of the queue, waiting for a flush that is
+ * under way to finish, called before the row is deleted
+ * @param obj the object about to be deleted
+ * @return true if a waiting copy was dropped
+ */
+static boolean cancel(AbstractPersistentObject<?> obj) {
+    Preconditions.checkNotNull(obj);
+    Class<?> clz = obj.getClass();
+    lock.lock();
+    try {
+        if (!enabled.contains(clz) && !pending.containsKey(clz)) return false;
+    } finally {
+        lock.unlock();
+    }
+    flushLock.lock();           // a flush holding this row writes it before the delete
+    try {
+        lock.lock();
+        try {
+            LinkedHashMap<Long, AbstractPersistentObject<?>> rows = pending.get(clz);
+            if (rows == null) return false;
+            AbstractPersistentObject<?> waiting = rows.remove(Long.valueOf(obj.getId()));
+            if (rows.isEmpty()) pending.remove(clz);
+            if (waiting == null) return false;
+            attempts.remove(waiting);
+            pendingCount--;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    } finally {
+        flushLock.unlock();
+    }
+}
+/**
+ * puts rows that could not be written back in the queue, unless a newer save of the same row
+ * is waiting, and drops the ones that have used up their attempts
+ * @param failed the rows of the last flush that failed
+ */
+private static void requeue(List<AbstractPersistentObject<?>> failed) {
+    lock.lock();
+    try {
+        for (AbstractPersistentObject<?> obj : failed) {
+            if (!obj.isFromDatabase()) {        // deleted since it was queued
+                attempts.remove(obj);
+                continue;
+            }
+            obj.setDirtyFlag();
+            Integer tries = attempts.remove(obj);
+            int count = (tries == null ? 0 : tries.intValue()) + 1;
+            LinkedHashMap<Long, AbstractPersistentObject<?>> rows = pending.get(obj.getClass());
+            if (rows != null && rows.containsKey(Long.valueOf(obj.getId()))) continue;   // a newer save is waiting
+            if (count >= maxAttempts) {
+                failures.increment();
+                wbLog.error("write behind lost update of " + obj.getClass().getName() + " id " + obj.getId()
+                                + " after " + count + " attempts");
+                continue;
+            }
+            if (rows == null) {
+                rows = new LinkedHashMap<Long, AbstractPersistentObject<?>>();
+                pending.put(obj.getClass(), rows);
+            }
+            rows.put(Long.valueOf(obj.getId()), obj);
+            attempts.put(obj, Integer.valueOf(count));
+            pendingCount++;
+            retries.increment();
+        }
+        if (pendingCount > 0 && flushTask == null) {
+            flushTask = getExecutor().schedule(flusher, flushInterval, TimeUnit.MILLISECONDS);
+        }
+    } finally {
+        lock.unlock();
+    }
+}
+/** must hold lock */
+private static ScheduledThreadPoolExecutor getExecutor() {
+    if (executor == null || executor.isShutdown()) {
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread rval = new Thread(r, "writeBehind");
+                    rval.setDaemon(true);
+                    return rval;
+                }
+            });
+    }
+    return executor;
+}
+/**
+ * writes everything waiting now, with {@link AbstractPersistentObject#saveAll}
+ * @return number of rows written
+ */
+public static int flush() {
+    flushLock.lock();
+    try {
+        List<AbstractPersistentObject<?>> rows = new ArrayList<AbstractPersistentObject<?>>();
+        lock.lock();
+        try {
+            flushQueued = false;
+            if (flushTask != null) {
+                flushTask.cancel(false);
+                flushTask = null;
+            }
+            if (pending.isEmpty()) return 0;
+            for (LinkedHashMap<Long, AbstractPersistentObject<?>> waiting : pending.values()) {
+                for (AbstractPersistentObject<?> obj : waiting.values()) {
+                    // the queue only holds updates, a row deleted since it was queued is not written
+                    if (obj.isFromDatabase()) {
+                        rows.add(obj);
+                    } else {
+                        attempts.remove(obj);
+                    }
+                }
+            }
+            pending.clear();
+            pendingCount = 0;
+            if (rows.isEmpty()) return 0;
+        } finally {
+            lock.unlock();
+        }
+        int rval = 0;
+        List<AbstractPersistentObject<?>> failed = new ArrayList<AbstractPersistentObject<?>>();
+        try {
+            rval = AbstractPersistentObject.saveAll(rows, failed);
+        } catch (SQLException sqe) {
+            wbLog.error("write behind can not reach the database", sqe);
+            failed = rows;
+        } catch (RuntimeException ex) {
+            wbLog.error("write behind can not reach the database", ex);
+            failed = rows;
+        }
+        flushes.increment();
+        written.add(rval);
+        lock.lock();
+        try {
+            if (!attempts.isEmpty()) {
+                Set<AbstractPersistentObject<?>> bad = Collections.newSetFromMap(
+                                new IdentityHashMap<AbstractPersistentObject<?>, Boolean>());
+                bad.addAll(failed);
+                for (AbstractPersistentObject<?> obj : rows) {
+                    if (!bad.contains(obj)) attempts.remove(obj);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!failed.isEmpty()) requeue(failed);
+        return rval;
+    } finally {
+        flushLock.unlock();
+    }
+}
+/**
+ * writes whatever is waiting and stops the background thread, called by
+ * {@link com.pfarrell.cache.CacheFactory#closeAllThreads}. A later save starts a new one.
+ * Rows that still can not be written stay queued for a later flush.
+ */
+public static void shutdown() {
+    flush();
+    lock.lock();
+    try {
+        if (pendingCount > 0) {
+            wbLog.error("write behind stopping with " + pendingCount + " rows not written");
+        }
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        flushQueued = false;
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    } finally {
+        lock.unlock();
+    }
+}
+/**
+ * @return number of objects waiting to be written
+ */
+public static int getPendingCount() {
+    lock.lock();
+    try {
+        return pendingCount;
+    } finally {
+        lock.unlock();
+    }
+}
+/**
+ * @return number of saves queued since start
+ */
+public static long getQueued() {
+    return queued.sum();
+}
+/**
+ * @return number of saves folded into an already waiting save of the same row
+ */
+public static long getCoalesced() {
+    return coalesced.sum();
+}
+/**
+ * @return number of rows written
+ */
+public static long getWritten() {
+    return written.sum();
+}
+/**
+ * @return number of flushes that had something to write
+ */
+public static long getFlushes() {
+    return flushes.sum();
+}
+/**
+ * @return number of rows put back in the queue after a failed write
+ */
+public static long getRetries() {
+    return retries.sum();
+}
+/**
+ * @return number of rows that could not be written in {@link #getMaxAttempts()} flushes, and were dropped
+ */
+public static long getFailures() {
+    return failures.sum();
+}
+}